@@ -8,9 +8,9 @@ import java.util.Observable;
 public class DataHolder extends Observable {
 
     /**
-     * Grouped list of events
+     * Current version of the schedule
      */
-    private SerializableSparseArray<EventGroup> eventGroups;
+    private volatile ScheduleSnapshot snapshot;
 
     // Private constructor. Prevents instantiation from other classes.
     private DataHolder() {}
@@ -30,17 +30,44 @@ public class DataHolder extends Observable {
         return InstanceHolder.INSTANCE;
     }
 
+    /**
+     * Gets the current schedule
+     * @return The grouped events or null if none have been loaded yet
+     */
     public SerializableSparseArray<EventGroup> getEventGroups() {
-        return eventGroups;
+        ScheduleSnapshot current = snapshot;
+        return current == null ? null : current.getEventGroups();
+    }
+
+    /**
+     * Gets the current version of the schedule
+     * @return The current snapshot or null if none has been loaded yet
+     */
+    ScheduleSnapshot getSnapshot() {
+        return snapshot;
     }
 
     /**
-     * Updates the cache data for the event groups
-     * @param eventGroups Cached event groups
+     * Updates the cached schedule. Observers are only notified if the generation has changed or
+     * the rest of a partially loaded schedule has arrived.
+     * @param snapshot New version of the schedule
      */
-    public void updateEventGroups(SerializableSparseArray<EventGroup> eventGroups) {
-        this.eventGroups = eventGroups;
-        setChanged();
+    void updateSnapshot(ScheduleSnapshot snapshot) {
+        synchronized (this) {
+            ScheduleSnapshot current = this.snapshot;
+            if (snapshot.isSameVersion(current)) {
+                // Same version, nothing to do
+                return;
+            }
+            if (!snapshot.isComplete() && current != null && current.isComplete()) {
+                // Never replace a complete schedule with a partial one
+                return;
+            }
+            this.snapshot = snapshot;
+            setChanged();
+        }
+        // Indexed in the background, searches use the previous version until then
+        SearchIndex.getInstance().index(snapshot);
         notifyObservers();
     }
 }
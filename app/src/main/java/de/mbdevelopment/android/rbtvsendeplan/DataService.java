@@ -3,7 +3,6 @@ package de.mbdevelopment.android.rbtvsendeplan;
 import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.app.Service;
-import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.net.ConnectivityManager;
@@ -19,24 +18,14 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.ObjectInput;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutput;
-import java.io.ObjectOutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.concurrent.locks.Lock;
 
 /**
  * Service for fetching calendar data from different sources.
@@ -48,11 +37,6 @@ public class DataService extends Service {
      */
     private static final String BASE_URL = "https://www.googleapis.com/calendar/v3/calendars/h6tfehdpu3jrbcrn9sdju9ohj8@group.calendar.google.com/events";
 
-    /**
-     * Filename for the local calendar copy
-     */
-    public static final String ON_DISK_FILE = "calendar.local";
-
     /**
      * Intent extra to force the download, ignoring locally stored backups and any settings for
      * periodical refreshing but still honoring the Wifi preference
@@ -112,9 +96,10 @@ public class DataService extends Service {
     private static final int INTENT_ID = 0;
 
     /**
-     * Indicates if the data is currently being loaded
+     * Indicates if the data is currently being loaded. Only kept in memory, a process that has
+     * been restarted is not loading.
      */
-    private boolean isLoading = false;
+    private static volatile boolean isLoading = false;
 
     /**
      * Application preferences
@@ -132,7 +117,9 @@ public class DataService extends Service {
     private class ParseException extends Exception {}
 
     /**
-     * Writes the event groups to internal storage
+     * Publishes freshly downloaded event groups and writes them to internal storage. Nothing is
+     * written or published if the schedule has not changed since the last download. The loading
+     * state is finished once the schedule has been published.
      */
     private class FileWriter implements Runnable {
 
@@ -144,23 +131,54 @@ public class DataService extends Service {
 
         @Override
         public void run() {
-            // Write
-            Lock lock = null;
-            try {
-                FileOutputStream fo = openFileOutput(ON_DISK_FILE, Context.MODE_PRIVATE);
-                lock = FileLockHolder.getInstance().getWriteLock(ON_DISK_FILE);
-                lock.lock();
-                BufferedOutputStream bo = new BufferedOutputStream(fo);
-                ObjectOutput oo = new ObjectOutputStream(bo);
-                oo.writeObject(eventGroups);
-                oo.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            } finally {
-                if (lock != null) {
-                    lock.unlock();
-                }
+            ScheduleSnapshot snapshot;
+            // Generations are derived from the stored ones, so writers must not overlap
+            synchronized (ScheduleFile.PUBLISH_LOCK) {
+                snapshot = publish();
+            }
+            onLoadFinished();
+
+            // Keep the final version of past days, even if the schedule has not changed since
+            // they have been shown last
+            HistoryArchive.archive(DataService.this, snapshot);
+        }
+
+        /**
+         * Publishes and writes the schedule if it has changed
+         * @return The published or the identical cached snapshot
+         */
+        private ScheduleSnapshot publish() {
+            long contentHash = ScheduleSnapshot.computeHash(eventGroups);
+            DataHolder dataHolder = DataHolder.getInstance();
+            ScheduleSnapshot current = dataHolder.getSnapshot();
+            // Copies without a generation are rewritten once, so they get a header
+            if (current != null && current.isComplete()
+                    && current.getContentHash() == contentHash
+                    && current.getGeneration() != ScheduleSnapshot.NO_GENERATION) {
+                // Identical to the cached schedule, the first screen might be from another day
+                FirstScreenFile.update(DataService.this, current);
+                return current;
             }
+
+            ScheduleFile.Header header = ScheduleFile.readHeader(DataService.this);
+            if (header != null && header.contentHash == contentHash) {
+                // Identical to the local copy, which has not been loaded yet
+                ScheduleSnapshot snapshot =
+                        new ScheduleSnapshot(eventGroups, header.generation, contentHash);
+                dataHolder.updateSnapshot(snapshot);
+                FirstScreenFile.update(DataService.this, snapshot);
+                return snapshot;
+            }
+
+            // New version
+            long generation = Math.max(header == null ? 0 : header.generation,
+                    current == null ? 0 : current.getGeneration()) + 1;
+            ScheduleSnapshot snapshot = new ScheduleSnapshot(eventGroups, generation, contentHash);
+            dataHolder.updateSnapshot(snapshot);
+            ScheduleFile.write(DataService.this, snapshot);
+            FirstScreenFile.update(DataService.this, snapshot);
+            OneDayScheduleWidgetProvider.notifyWidgets(getApplicationContext());
+            return snapshot;
         }
     }
 
@@ -169,29 +187,20 @@ public class DataService extends Service {
       */
     private class FileLoader implements Runnable {
 
-        @SuppressWarnings("unchecked") // Deserializing produces a compiler warning
         @Override
         public void run() {
-            // Read
-            Lock lock = null;
-            try {
-                FileInputStream fi = openFileInput(ON_DISK_FILE);
-                lock = FileLockHolder.getInstance().getReadLock(ON_DISK_FILE);
-                lock.lock();
-                BufferedInputStream bi = new BufferedInputStream(fi);
-                ObjectInput oi = new ObjectInputStream(bi);
-                onBackupRecovered((SerializableSparseArray<EventGroup>) oi.readObject());
-                oi.close();
-            } catch (FileNotFoundException e) {
-                // No backup in storage
-                onBackupRecovered(null);
-            } catch (ClassNotFoundException | IOException e) {
-                e.printStackTrace();
-            } finally {
-                if (lock != null) {
-                    lock.unlock();
-                }
-            }
+            // Publish the current day as soon as it has been decoded
+            ScheduleSnapshot snapshot = ScheduleFile.read(DataService.this,
+                    new ScheduleFile.PartialLoadListener() {
+                        @Override
+                        public void onPartialLoad(ScheduleSnapshot partial) {
+                            DataHolder.getInstance().updateSnapshot(partial);
+                        }
+                    });
+            snapshot = ScheduleFile.upgradeLegacy(DataService.this, snapshot);
+            onBackupRecovered(snapshot);
+            // Days that have passed since the copy has been written are archived now
+            HistoryArchive.archive(DataService.this, snapshot);
         }
     }
 
@@ -237,14 +246,12 @@ public class DataService extends Service {
                 broadcast(BROADCAST_FORMAT_ERROR);
             }
 
-            onLoadFinished();
-
             if (eventGroups != null) {
-                // Update holder
-                DataHolder.getInstance().updateEventGroups(eventGroups);
-
-                // Write to storage
+                // Update holder and write to storage if anything has changed. Loading is finished
+                // by the writer once the schedule has been published.
                 new Thread(new FileWriter(eventGroups)).start();
+            } else {
+                onLoadFinished();
             }
 
             stopSelf(); // Work done
@@ -363,7 +370,8 @@ public class DataService extends Service {
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        boolean refreshPeriodically = prefs.getBoolean(getString(R.string.pref_refresh_key), true);
+        Settings.Snapshot settings = Settings.getInstance().get();
+        boolean refreshPeriodically = settings.refreshPeriodically;
 
         // Update alarm for refreshing
         AlarmManager alarmManager = (AlarmManager) getSystemService(ALARM_SERVICE);
@@ -373,12 +381,8 @@ public class DataService extends Service {
                 INTENT_ID, alarmIntent, PendingIntent.FLAG_UPDATE_CURRENT);
         if (refreshPeriodically) {
             // Set new alarm in case of periodical refreshing
-            long refreshPeriod = Long.parseLong(prefs.getString(
-                    getString(R.string.pref_refresh_time_key),
-                    getString(R.string.pref_refresh_time_default))) * 60000L;
-
             alarmManager.set(AlarmManager.ELAPSED_REALTIME,
-                    SystemClock.elapsedRealtime() + refreshPeriod, pendingAlarmIntent);
+                    SystemClock.elapsedRealtime() + settings.refreshPeriod, pendingAlarmIntent);
         } else {
             // Cancel possibly set alarms
             alarmManager.cancel(pendingAlarmIntent);
@@ -426,7 +430,7 @@ public class DataService extends Service {
      */
     private void startDownloadTask() {
         // Download if preferences allow it
-        if (prefs.getBoolean(getString(R.string.pref_wifi_key), true)) {
+        if (Settings.getInstance().get().wifiOnly) {
             ConnectivityManager cm =
                     (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
             NetworkInfo wifi = cm.getNetworkInfo(ConnectivityManager.TYPE_WIFI);
@@ -511,15 +515,15 @@ public class DataService extends Service {
      * Called when a backup recovery has been completed. Stores the recovered data in the
      * {@link de.mbdevelopment.android.rbtvsendeplan.DataHolder} or attempts to download new data
      * if the recovery failed.
-     * @param eventGroups Recovery result
+     * @param snapshot Recovery result
      */
-    private void onBackupRecovered(SerializableSparseArray<EventGroup> eventGroups) {
-        if (eventGroups == null) {
+    private void onBackupRecovered(ScheduleSnapshot snapshot) {
+        if (snapshot == null) {
             // Download
             startDownloadTask();
         } else {
             // Give data
-            DataHolder.getInstance().updateEventGroups(eventGroups);
+            DataHolder.getInstance().updateSnapshot(snapshot);
             onLoadFinished();
 
             // Everything done, stop service.
@@ -529,12 +533,12 @@ public class DataService extends Service {
 
     /**
      * Must be called after loading has finished. Wraps up the service and notifies listeners of
-     * the finished status.
+     * the finished status. Widgets are notified separately once changed data has been written.
+     * May be called on any thread.
      */
     private void onLoadFinished() {
         setLoading(false);
         broadcast(BROADCAST_STATUS_UPDATE, STATUS_LOADING_FINISHED);
-        OneDayScheduleWidgetProvider.notifyWidgets(getApplicationContext());
     }
 
     /**
@@ -558,11 +562,18 @@ public class DataService extends Service {
     }
 
     /**
-     * Sets loading state locally and in shared preferences
+     * Sets loading state
      * @param isLoading Loading state
      */
-    private void setLoading(boolean isLoading) {
-        prefs.edit().putBoolean(getString(R.string.pref_is_loading), isLoading).apply();
-        this.isLoading = isLoading;
+    private static void setLoading(boolean isLoading) {
+        DataService.isLoading = isLoading;
+    }
+
+    /**
+     * Checks if the data is currently being loaded
+     * @return true if a load is running, false else
+     */
+    public static boolean isLoading() {
+        return isLoading;
     }
 }
@@ -40,6 +40,16 @@ public class Event implements Serializable {
      */
     private final String recurringId;
 
+    /**
+     * Cached compact identity of the event, 0 if not computed yet
+     */
+    private transient long handle;
+
+    /**
+     * Cached compact identity of the recurring event, 0 if not computed yet
+     */
+    private transient long recurringHandle;
+
     /**
      * Determines if an event is currently running in respect to the device's time
      * @return true if the event has started and has not yet finished, false else
@@ -104,4 +114,35 @@ public class Event implements Serializable {
     public boolean isRecurring() {
         return (recurringId != null);
     }
+
+    /**
+     * Gets a compact identity of the event derived from its id
+     * @return 64 bit handle of the id
+     */
+    public long getHandle() {
+        if (handle == 0) handle = computeHandle(id);
+        return handle;
+    }
+
+    /**
+     * Gets a compact identity of the recurring event derived from its id
+     * @return 64 bit handle of the recurring event id or 0 if the event is not recurring
+     */
+    public long getRecurringHandle() {
+        if (recurringHandle == 0 && recurringId != null) {
+            recurringHandle = computeHandle(recurringId);
+        }
+        return recurringHandle;
+    }
+
+    /**
+     * Computes the 64 bit FNV-1a hash of an id. Collisions between the few thousand ids the app
+     * handles are practically impossible.
+     * @param id Event or recurring event id
+     * @return Handle of the id, never 0
+     */
+    public static long computeHandle(String id) {
+        long hash = Fnv.addChars(Fnv.OFFSET_BASIS, id);
+        return hash == 0 ? 1 : hash;
+    }
 }
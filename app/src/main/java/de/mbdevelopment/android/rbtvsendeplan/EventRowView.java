@@ -0,0 +1,300 @@
+package de.mbdevelopment.android.rbtvsendeplan;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.graphics.drawable.Drawable;
+import android.text.Layout;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+import android.util.AttributeSet;
+import android.view.View;
+import android.widget.Checkable;
+
+/**
+ * Single view showing an event row of the schedule list. Start time, type icon, title with running
+ * indicator and reminder icon are measured and drawn directly instead of by four child views.
+ * Paints and typefaces are shared by all rows, the layout of the title is cached until the title
+ * or the width changes.
+ */
+public class EventRowView extends View implements Checkable {
+
+    private static final int[] CHECKED_STATE_SET = {
+            android.R.attr.state_checked
+    };
+
+    /**
+     * Paints, typefaces and dimensions shared by all rows. Must only be used on the UI thread.
+     */
+    static class Style {
+
+        private static Style instance;
+
+        final Typeface typeFace;
+        final Typeface typeFaceLightItalic;
+        final Typeface typeFaceBold;
+        final TextPaint timePaint;
+        final TextPaint titlePaint;
+        final TextPaint runningTitlePaint;
+        final int dateWidth;
+        final int typeSize;
+        final int typePadding;
+        final int typeMarginLeft;
+        final int titleMarginLeft;
+        final int reminderSize;
+        final int reminderPaddingLeft;
+        final int paddingLeft;
+        final int paddingRight;
+        final int paddingTop;
+        final int paddingBottom;
+
+        private Style(Context context) {
+            typeFace = Typeface.createFromAsset(context.getAssets(),
+                    "fonts/RobotoCondensed-Light.ttf");
+            typeFaceLightItalic = Typeface.createFromAsset(context.getAssets(),
+                    "fonts/RobotoCondensed-LightItalic.ttf");
+            typeFaceBold = Typeface.createFromAsset(context.getAssets(),
+                    "fonts/RobotoCondensed-Bold.ttf");
+
+            Resources resources = context.getResources();
+            float textSize = resources.getDimension(R.dimen.text_size);
+            int textColor = resources.getColor(R.color.event_list_child_text);
+            timePaint = createPaint(typeFaceBold, textSize, textColor);
+            timePaint.setTextAlign(Paint.Align.RIGHT);
+            titlePaint = createPaint(typeFace, textSize, textColor);
+            runningTitlePaint = createPaint(typeFaceLightItalic, textSize, textColor);
+
+            dateWidth = resources.getDimensionPixelSize(R.dimen.event_list_date_width);
+            typeSize = resources.getDimensionPixelSize(R.dimen.event_list_type_size);
+            typePadding = resources.getDimensionPixelSize(R.dimen.event_list_type_padding);
+            typeMarginLeft = resources.getDimensionPixelSize(R.dimen.event_list_type_margin_left);
+            titleMarginLeft =
+                    resources.getDimensionPixelSize(R.dimen.event_list_title_margin_left);
+            reminderSize = resources.getDimensionPixelSize(R.dimen.event_list_reminder_size);
+            reminderPaddingLeft =
+                    resources.getDimensionPixelSize(R.dimen.event_list_reminder_padding_left);
+            paddingLeft = resources.getDimensionPixelSize(R.dimen.event_list_padding_left);
+            paddingRight = resources.getDimensionPixelSize(R.dimen.event_list_padding_right);
+            paddingTop = resources.getDimensionPixelSize(R.dimen.event_list_padding_top);
+            paddingBottom = resources.getDimensionPixelSize(R.dimen.event_list_padding_bottom);
+        }
+
+        /**
+         * Gets the shared style, loading it on first use
+         * @param context Any context of the application
+         * @return The shared style
+         */
+        static Style get(Context context) {
+            if (instance == null) {
+                instance = new Style(context.getApplicationContext());
+            }
+            return instance;
+        }
+
+        private static TextPaint createPaint(Typeface typeface, float textSize, int color) {
+            TextPaint paint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+            paint.setTypeface(typeface);
+            paint.setTextSize(textSize);
+            paint.setColor(color);
+            return paint;
+        }
+    }
+
+    private final Style style;
+    private boolean checked;
+
+    private String time = "";
+    private CharSequence title = "";
+    private boolean running;
+
+    private Drawable.ConstantState typeState;
+    private Drawable typeIcon;
+    private Drawable.ConstantState reminderState;
+    private Drawable reminderIcon;
+    private Drawable.ConstantState backgroundState;
+
+    /**
+     * Cached layout of the title
+     */
+    private StaticLayout titleLayout;
+
+    public EventRowView(Context context) {
+        this(context, null);
+    }
+
+    public EventRowView(Context context, AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public EventRowView(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+        style = Style.get(context);
+    }
+
+    /**
+     * Shows the data of a row
+     * @param row Precomputed display data
+     * @param reminder Shared state of the reminder icon or null if none is shown
+     */
+    void bind(ScheduleRenderModel.Row row, Drawable.ConstantState reminder) {
+        Resources resources = getResources();
+        if (row.background != backgroundState) {
+            backgroundState = row.background;
+            setBackgroundDrawable(backgroundState.newDrawable(resources));
+        }
+        // Needed for Android < 5.0 to reset padding
+        setPadding(style.paddingLeft, style.paddingTop, style.paddingRight, style.paddingBottom);
+
+        if (row.typeIcon != typeState) {
+            typeState = row.typeIcon;
+            typeIcon = typeState.newDrawable(resources);
+        }
+        if (reminder != reminderState) {
+            reminderState = reminder;
+            reminderIcon = reminder == null ? null : reminder.newDrawable(resources);
+        }
+
+        boolean layoutChanged = row.title != title || row.running != running;
+        time = row.time;
+        title = row.title == null ? "" : row.title;
+        running = row.running;
+        setContentDescription(time + " " + title);
+
+        if (layoutChanged) {
+            titleLayout = null;
+            requestLayout();
+        }
+        invalidate();
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        int width = MeasureSpec.getSize(widthMeasureSpec);
+        StaticLayout layout = getTitleLayout(width);
+        int timeHeight = getLineHeight(style.timePaint);
+        int content = Math.max(Math.max(timeHeight, style.typeSize),
+                Math.max(layout == null ? 0 : layout.getHeight(), style.reminderSize));
+        int height = content + getPaddingTop() + getPaddingBottom();
+        setMeasuredDimension(width, resolveSize(height, heightMeasureSpec));
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        StartupTrace.mark(StartupTrace.Phase.FIRST_ROW);
+        int left = getPaddingLeft();
+        int top = getPaddingTop();
+
+        // Start time, right aligned in its column
+        int x = left + style.dateWidth;
+        canvas.drawText(time, x, top - style.timePaint.getFontMetricsInt().ascent,
+                style.timePaint);
+
+        // Type icon
+        x += style.typeMarginLeft;
+        if (typeIcon != null) {
+            drawIcon(canvas, typeIcon, x + style.typePadding, top + style.typePadding,
+                    style.typeSize - 2 * style.typePadding);
+        }
+        x += style.typeSize + style.titleMarginLeft;
+
+        // Title
+        StaticLayout layout = getTitleLayout(getWidth());
+        if (layout != null) {
+            canvas.save();
+            canvas.translate(x, top);
+            layout.draw(canvas);
+            canvas.restore();
+        }
+
+        // Reminder icon
+        if (reminderIcon != null) {
+            int reminderLeft = getWidth() - getPaddingRight() - style.reminderSize
+                    + style.reminderPaddingLeft;
+            drawIcon(canvas, reminderIcon, reminderLeft, top,
+                    style.reminderSize - style.reminderPaddingLeft);
+        }
+    }
+
+    /**
+     * Draws an icon centered in a square box keeping its aspect ratio
+     * @param canvas Canvas to draw on
+     * @param icon The icon
+     * @param left Left edge of the box
+     * @param top Top edge of the box
+     * @param size Edge length of the box
+     */
+    private void drawIcon(Canvas canvas, Drawable icon, int left, int top, int size) {
+        int w = icon.getIntrinsicWidth();
+        int h = icon.getIntrinsicHeight();
+        int drawWidth = size;
+        int drawHeight = size;
+        if (w > 0 && h > 0) {
+            if (w > h) {
+                drawHeight = size * h / w;
+            } else {
+                drawWidth = size * w / h;
+            }
+        }
+        int l = left + (size - drawWidth) / 2;
+        int t = top + (size - drawHeight) / 2;
+        icon.setBounds(l, t, l + drawWidth, t + drawHeight);
+        icon.draw(canvas);
+    }
+
+    /**
+     * Gets the layout of the title, creating it if the title or the width has changed
+     * @param width Width of the view
+     * @return The layout or null if there is no space for the title
+     */
+    private StaticLayout getTitleLayout(int width) {
+        int titleWidth = width - getPaddingLeft() - getPaddingRight() - style.dateWidth
+                - style.typeMarginLeft - style.typeSize - style.titleMarginLeft
+                - style.reminderSize;
+        if (titleWidth <= 0) return null;
+        if (titleLayout == null || titleLayout.getWidth() != titleWidth) {
+            titleLayout = new StaticLayout(title,
+                    running ? style.runningTitlePaint : style.titlePaint, titleWidth,
+                    Layout.Alignment.ALIGN_NORMAL, 1f, 0f, true);
+        }
+        return titleLayout;
+    }
+
+    /**
+     * Computes the height of a single line of text
+     * @param paint Paint of the text
+     * @return Line height in pixels
+     */
+    private static int getLineHeight(Paint paint) {
+        Paint.FontMetricsInt metrics = paint.getFontMetricsInt();
+        return metrics.bottom - metrics.top;
+    }
+
+    @Override
+    public boolean isChecked() {
+        return checked;
+    }
+
+    @Override
+    public void setChecked(boolean checked) {
+        if (this.checked != checked) {
+            this.checked = checked;
+            refreshDrawableState();
+        }
+    }
+
+    @Override
+    public void toggle() {
+        setChecked(!checked);
+    }
+
+    @Override
+    protected int[] onCreateDrawableState(int extraSpace) {
+        final int[] drawableState = super.onCreateDrawableState(extraSpace + 1);
+        if (isChecked()) {
+            mergeDrawableStates(drawableState, CHECKED_STATE_SET);
+        }
+        return drawableState;
+    }
+}
@@ -1,56 +1,36 @@
 package de.mbdevelopment.android.rbtvsendeplan;
 
-import android.app.Activity;
 import android.content.Context;
-import android.content.res.Resources;
-import android.graphics.Color;
+import android.database.DataSetObserver;
 import android.graphics.Typeface;
-import android.graphics.drawable.ColorDrawable;
-import android.graphics.drawable.Drawable;
-import android.graphics.drawable.StateListDrawable;
-import android.support.v4.content.res.ResourcesCompat;
-import android.text.SpannableString;
-import android.text.format.DateUtils;
-import android.text.style.ForegroundColorSpan;
-import android.text.style.StyleSpan;
-import android.util.SparseArray;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.BaseExpandableListAdapter;
-import android.widget.ImageView;
+import android.widget.ExpandableListView;
 import android.widget.TextView;
 
 import java.util.Calendar;
 import java.util.List;
+import java.util.Set;
 
 /**
- * Adapter to provide data for an {@link android.widget.ExpandableListView}.
+ * Adapter to provide data for an {@link android.widget.ExpandableListView}. Groups and children
+ * have stable ids derived from their day and event, so the data can be swapped in place without
+ * losing the scroll position or expansion state.
+ * <p>
+ * The adapter does not reference an activity, so it can be kept across configuration changes and
+ * attached to the list view of the new activity instance.
  */
 class ExpandableEventListAdapter extends BaseExpandableListAdapter {
-    private final SparseArray<EventGroup> eventGroups;
-    private final LayoutInflater inflater;
-    private final Activity activity;
+    private ScheduleRenderModel model;
     private final ReminderCallbacks callbacks;
-    private final Context context;
-    private final Drawable emptyDrawable = new ColorDrawable(Color.TRANSPARENT);
-    private final Typeface typeFace;
-    private final Typeface typeFaceLightItalic;
     private final Typeface typeFaceBold;
-    private final int rowPaddingLeft;
-    private final int rowPaddingRight;
-    private final int rowPaddingTop;
-    private final int rowPaddingBottom;
 
     /**
-     * View Holder for the list entries, using the Holder Pattern.
+     * Observer of the list view currently using this adapter
      */
-    private class EventHolder {
-        public TextView dateView;
-        public ImageView typeView;
-        public TextView nameView;
-        public ImageView reminderView;
-    }
+    private DataSetObserver observer;
 
     /**
      * View Holder for the group entries, using the Holder Pattern.
@@ -65,194 +45,93 @@ class ExpandableEventListAdapter extends BaseExpandableListAdapter {
 
     /**
      * Instantiates new adapter.
-     * @param activity This Activity's {@link android.view.LayoutInflater} will be used
-     * @param eventGroups List of grouped events
+     * @param context Any context of the application
+     * @param model Precomputed display data of the grouped events
+     * @param callbacks Provides the reminder state of events
      */
-    public ExpandableEventListAdapter(Activity activity, SparseArray<EventGroup> eventGroups) {
-        typeFace = Typeface.createFromAsset(activity.getApplicationContext().getAssets(),
-                "fonts/RobotoCondensed-Light.ttf");
-        typeFaceLightItalic = Typeface.createFromAsset(activity.getApplicationContext().getAssets(),
-                "fonts/RobotoCondensed-LightItalic.ttf");
-        typeFaceBold = Typeface.createFromAsset(activity.getApplicationContext().getAssets(),
-                "fonts/RobotoCondensed-Bold.ttf");
-        
-        this.eventGroups = eventGroups;
-        inflater = activity.getLayoutInflater();
-        this.activity = activity;
-        callbacks = (ReminderCallbacks) activity;
-        context = activity.getApplicationContext();
-
-        Resources resources = activity.getResources();
-        rowPaddingLeft = resources.getDimensionPixelSize(R.dimen.event_list_padding_left);
-        rowPaddingRight = resources.getDimensionPixelSize(R.dimen.event_list_padding_right);
-        rowPaddingTop = resources.getDimensionPixelSize(R.dimen.event_list_padding_top);
-        rowPaddingBottom = resources.getDimensionPixelSize(R.dimen.event_list_padding_bottom);
+    public ExpandableEventListAdapter(Context context, ScheduleRenderModel model,
+                                      ReminderCallbacks callbacks) {
+        typeFaceBold = EventRowView.Style.get(context).typeFaceBold;
+        this.model = model;
+        this.callbacks = callbacks;
     }
 
     @Override
-    public View getChildView(int groupPosition, int childPosition, boolean isLastChild,
-                             View convertView, ViewGroup parent) {
-        View rowView = convertView;
-
-        // View holder pattern
-        if (rowView == null) {
-            rowView = inflater.inflate(R.layout.event_row, parent, false);
-            EventHolder eventHolder = new EventHolder();
-            eventHolder.dateView = (TextView) rowView.findViewById(R.id.event_date);
-            eventHolder.typeView = (ImageView) rowView.findViewById(R.id.event_type);
-            eventHolder.nameView = (TextView) rowView.findViewById(R.id.event_name);
-            eventHolder.reminderView = (ImageView) rowView.findViewById(R.id.event_reminder);
-            rowView.setTag(eventHolder);
-        }
-
-        EventHolder eventHolder = (EventHolder) rowView.getTag();
-
-        Event event = eventGroups.get(groupPosition).getEvents().get(childPosition);
-        Resources resources = rowView.getResources();
-
-        // Commit background
-        rowView.setBackgroundDrawable(getBackgroundDrawable(event, resources));
-        // Needed for Android < 5.0 to reset padding
-        rowView.setPadding(rowPaddingLeft, rowPaddingTop, rowPaddingRight, rowPaddingBottom);
-
-        // Indicate the currently running show with a text
-        SpannableString runningIndicator = null;
-        if (event.isCurrentlyRunning()) {
-            runningIndicator = new SpannableString("   " +
-                    resources.getString(R.string.running_indicator));
-            runningIndicator.setSpan(new ForegroundColorSpan(
-                            resources.getColor(R.color.running_indicator)),
-                    3, runningIndicator.length(), SpannableString.SPAN_EXCLUSIVE_EXCLUSIVE);
-            runningIndicator.setSpan(new StyleSpan(Typeface.BOLD), 0, runningIndicator.length(),
-                    SpannableString.SPAN_EXCLUSIVE_EXCLUSIVE);
-        }
-
-        // Set data
-        eventHolder.dateView.setTypeface(typeFaceBold);
-        eventHolder.dateView.setText(formatEventDate(event.getStartDate()));
-        eventHolder.typeView.setImageDrawable(getTypeDrawable(event, resources));
-        eventHolder.nameView.setTypeface(typeFace);
-        eventHolder.nameView.setText(event.getTitle());
-        if (runningIndicator != null) {
-            eventHolder.nameView.setTypeface(typeFaceLightItalic);
-            eventHolder.nameView.append(runningIndicator);
-        }
-        eventHolder.reminderView.setImageDrawable(getReminderDrawable(event));
+    public void registerDataSetObserver(DataSetObserver observer) {
+        // Only one list view uses the adapter at a time. The list view of a destroyed activity
+        // never unregisters, so its observer is dropped when the next one registers.
+        if (this.observer != null) super.unregisterDataSetObserver(this.observer);
+        this.observer = observer;
+        super.registerDataSetObserver(observer);
+    }
 
-        return rowView;
+    @Override
+    public void unregisterDataSetObserver(DataSetObserver observer) {
+        if (this.observer == observer) this.observer = null;
+        super.unregisterDataSetObserver(observer);
     }
 
     /**
-     * Determines the color of an reminder icon for an event based on set reminders and it's date
-     * @param event The event corresponding to the icon in question
-     * @return The color id
+     * Swaps in new display data. Only the changed rows are rebound if the structure of the
+     * schedule is unchanged, otherwise the list is notified of the changed data set.
+     * @param newModel The new display data
+     * @param listView The list view using this adapter or null if none is attached
      */
-    private Drawable getReminderDrawable(Event event) {
-        if (event.isCurrentlyRunning() || isOver(event)) {
-            return emptyDrawable;
-        }
-        if (callbacks.hasReminder(event)) {
-            return ResourcesCompat.getDrawable(activity.getResources(),
-                    R.drawable.ic_alarm_on_black_36dp, null);
+    public void setModel(ScheduleRenderModel newModel, ExpandableListView listView) {
+        Set<Long> changed = newModel.diff(model);
+        model = newModel;
+        if (changed == null || listView == null) {
+            notifyDataSetChanged();
+        } else if (!changed.isEmpty()) {
+            rebindChildren(listView, changed);
         }
-        return ResourcesCompat.getDrawable(activity.getResources(),
-                R.drawable.ic_alarm_add_grey600_36dp, null);
     }
 
     /**
-     * Fetches the appropriate background drawable for the event based on it's type and state.
-     * @param event The drawable will be determined based on this event's type and state
-     * @param resources Resources to be used to fetch the drawable
-     * @return Drawable for the event's background.
+     * Rebinds the visible child views in place without relayouting the list
+     * @param listView The list view using this adapter
+     * @param ids Ids of the children to be rebound or null to rebind all visible children
      */
-    private Drawable getBackgroundDrawable(Event event, Resources resources) {
-        if (event == null || resources == null) return null;
-        boolean runningNow = event.isCurrentlyRunning();
-        if (event.getType().equals(Event.Type.NEW)) {
-            if (runningNow) {
-                return ResourcesCompat.getDrawable(resources, R.drawable.new_now_background, null);
-            } else {
-                StateListDrawable stateList = new StateListDrawable();
-                stateList.addState(new int[]{android.R.attr.state_pressed},
-                        ResourcesCompat.getDrawable(resources, R.color.new_background_selected,
-                                null));
-                stateList.addState(new int[]{}, ResourcesCompat.getDrawable(resources,
-                        R.color.new_background, null));
-                return stateList;
+    public void rebindChildren(ExpandableListView listView, Set<Long> ids) {
+        int first = listView.getFirstVisiblePosition();
+        for (int i = 0; i < listView.getChildCount(); i++) {
+            long packedPosition = listView.getExpandableListPosition(first + i);
+            if (ExpandableListView.getPackedPositionType(packedPosition)
+                    != ExpandableListView.PACKED_POSITION_TYPE_CHILD) {
+                continue;
             }
-        } else if (event.getType().equals(Event.Type.LIVE)) {
-            if (runningNow) {
-                return ResourcesCompat.getDrawable(resources, R.drawable.live_now_background, null);
-            } else {
-                StateListDrawable stateList = new StateListDrawable();
-                stateList.addState(new int[]{android.R.attr.state_pressed},
-                        ResourcesCompat.getDrawable(resources, R.color.live_background_selected,
-                                null));
-                stateList.addState(new int[]{}, ResourcesCompat.getDrawable(resources,
-                        R.color.live_background, null));
-                return stateList;
-            }
-        } else {
-            if (runningNow) {
-                return ResourcesCompat.getDrawable(resources, R.drawable.rerun_now_background,
-                        null);
-            } else {
-                StateListDrawable stateList = new StateListDrawable();
-                stateList.addState(new int[]{android.R.attr.state_pressed},
-                        ResourcesCompat.getDrawable(resources, R.color.rerun_background_selected,
-                                null));
-                stateList.addState(new int[]{}, ResourcesCompat.getDrawable(resources,
-                        R.color.rerun_background, null));
-                return stateList;
+            int groupPosition = ExpandableListView.getPackedPositionGroup(packedPosition);
+            int childPosition = ExpandableListView.getPackedPositionChild(packedPosition);
+            if (ids == null || ids.contains(getChildId(groupPosition, childPosition))) {
+                getChildView(groupPosition, childPosition,
+                        childPosition == getChildrenCount(groupPosition) - 1,
+                        listView.getChildAt(i), listView);
             }
         }
     }
 
-    /**
-     * Fetches the appropriate drawable for an event's type.
-     * @param event The drawable will be determined based on this event's type
-     * @param resources Resources to be used to fetch the drawable
-     * @return Drawable for the event's type.
-     */
-    private Drawable getTypeDrawable(Event event, Resources resources) {
-        if (event == null || resources == null) return null;
-        if (event.getType().equals(Event.Type.NEW)) {
-            return ResourcesCompat.getDrawable(resources, R.drawable.ic_new, null);
-        } else if (event.getType().equals(Event.Type.LIVE)) {
-            return ResourcesCompat.getDrawable(resources, R.drawable.ic_live, null);
-        } else {
-            return ResourcesCompat.getDrawable(resources, R.drawable.ic_rerun, null);
+    @Override
+    public View getChildView(int groupPosition, int childPosition, boolean isLastChild,
+                             View convertView, ViewGroup parent) {
+        EventRowView rowView = (EventRowView) convertView;
+        if (rowView == null) {
+            rowView = new EventRowView(parent.getContext());
         }
-    }
 
-    /**
-     * Determines if an event is over
-     * @param event Event to be checked
-     * @return true if the event has ended, false else
-     */
-    private boolean isOver(Event event) {
-        Calendar now = Calendar.getInstance();
-        return now.compareTo(event.getEndDate()) == 1;
-    }
+        ScheduleRenderModel.Row row = model.getRow(groupPosition, childPosition);
+        rowView.bind(row, model.getReminderIcon(row, callbacks.hasReminder(row.event)));
 
-    /**
-     * Formats a calendar date to "HH:mm".
-     * @param date Calendar to be formatted
-     * @return Formatted string
-     */
-    private String formatEventDate(Calendar date) {
-        return DateUtils.formatDateTime(context, date.getTimeInMillis(),
-                DateUtils.FORMAT_SHOW_TIME);
+        return rowView;
     }
 
     @Override
     public boolean isChildSelectable(int groupPosition, int childPosition) {
-        return !isOver(eventGroups.get(groupPosition).getEvents().get(childPosition));
+        return !model.getRow(groupPosition, childPosition).over;
     }
 
     @Override
     public int getGroupCount() {
-        return eventGroups.size();
+        return model.getGroupCount();
     }
 
     @Override
@@ -262,7 +141,8 @@ class ExpandableEventListAdapter extends BaseExpandableListAdapter {
 
         // View Holder pattern
         if (rowView == null) {
-            rowView = inflater.inflate(R.layout.event_group_row, parent, false);
+            rowView = LayoutInflater.from(parent.getContext())
+                    .inflate(R.layout.event_group_row, parent, false);
             GroupHolder groupHolder = new GroupHolder();
             groupHolder.groupView = (TextView) rowView.findViewById(R.id.event_group);
             rowView.setTag(groupHolder);
@@ -276,51 +156,40 @@ class ExpandableEventListAdapter extends BaseExpandableListAdapter {
         groupHolder.groupView.setTextColor(isExpanded
                 ? parent.getResources().getColor(R.color.event_list_group_text_selected)
                 : parent.getResources().getColor(R.color.event_list_group_text));
-        groupHolder.groupView.setText(formatGroupDate(eventGroups.get(groupPosition).getDate()));
+        groupHolder.groupView.setText(model.getGroup(groupPosition).date);
         groupHolder.groupView.setTypeface(typeFaceBold);
 
         return rowView;
     }
 
-    /**
-     * Formats the group date display string
-     * @param date Calendar to be formatted
-     * @return Formatted date
-     */
-    private String formatGroupDate(Calendar date) {
-        return DateUtils.formatDateTime(context, date.getTimeInMillis(),
-                DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_WEEKDAY |
-                        DateUtils.FORMAT_SHOW_YEAR | DateUtils.FORMAT_ABBREV_WEEKDAY);
-    }
-
     @Override
     public long getChildId(int groupPosition, int childPosition) {
-        return groupPosition * 100 + childPosition;
+        return model.getRow(groupPosition, childPosition).getId();
     }
 
     @Override
     public boolean hasStableIds() {
-        return false;
+        return true;
     }
 
     @Override
     public Object getChild(int groupPosition, int childPosition) {
-        return eventGroups.get(groupPosition).getEvents().get(childPosition);
+        return model.getRow(groupPosition, childPosition).event;
     }
 
     @Override
     public long getGroupId(int groupPosition) {
-        return groupPosition;
+        return model.getGroup(groupPosition).id;
     }
 
     @Override
     public Object getGroup(int groupPosition) {
-        return eventGroups.get(groupPosition);
+        return model.getGroup(groupPosition).eventGroup;
     }
 
     @Override
     public int getChildrenCount(int groupPosition) {
-        return eventGroups.get(groupPosition).getEvents().size();
+        return model.getGroup(groupPosition).rows.size();
     }
 
     /**
@@ -331,8 +200,8 @@ class ExpandableEventListAdapter extends BaseExpandableListAdapter {
     public int[] findCurrentEvent() {
         int[] pos = {-1, -1};
         Calendar today = Calendar.getInstance();
-        for (int i = 0; i < eventGroups.size(); i++) {
-            if (Utils.isSameDay(eventGroups.get(i).getDate(), today)) {
+        for (int i = 0; i < model.getGroupCount(); i++) {
+            if (Utils.isSameDay(model.getGroup(i).eventGroup.getDate(), today)) {
                 pos[0] = i;
                 break;
             }
@@ -341,7 +210,7 @@ class ExpandableEventListAdapter extends BaseExpandableListAdapter {
         if (pos[0] != -1) {
             // Day has been found. Look for a running event and return it's position. If no running
             // event is found, return the last event before the current time
-            List<Event> currentGroup = eventGroups.get(pos[0]).getEvents();
+            List<Event> currentGroup = model.getGroup(pos[0]).eventGroup.getEvents();
             Event currentEvent;
             for (int i = 0; i < currentGroup.size(); i++) {
                 currentEvent = currentGroup.get(i);
@@ -361,4 +230,16 @@ class ExpandableEventListAdapter extends BaseExpandableListAdapter {
         }
         return pos;
     }
+
+    /**
+     * Finds the position of a group by its stable id
+     * @param groupId Id of the group, see {@link SearchIndex.Hit#day}
+     * @return The group position or -1 if the group is not shown
+     */
+    public int findGroup(long groupId) {
+        for (int i = 0; i < model.getGroupCount(); i++) {
+            if (model.getGroup(i).id == groupId) return i;
+        }
+        return -1;
+    }
 }
@@ -1,23 +1,23 @@
 package de.mbdevelopment.android.rbtvsendeplan;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
- * Singleton providing application-wide locks for file access.
+ * Singleton providing application-wide locks for file access. Locks are created on first use and
+ * are safe to request from any thread.
  */
 public class FileLockHolder {
 
     /**
      * Maps filenames to their locks
      */
-    private final Map<String, ReentrantReadWriteLock> fileToLockMap;
+    private final ConcurrentHashMap<String, ReentrantReadWriteLock> fileToLockMap;
 
     // Private constructor. Prevents instantiation from other classes.
     private FileLockHolder() {
-        fileToLockMap = new HashMap<>();
+        fileToLockMap = new ConcurrentHashMap<>();
     }
 
     /**
@@ -41,11 +41,7 @@ public class FileLockHolder {
      * @return A read lock for the file
      */
     public Lock getReadLock(String filename) {
-        if (!fileToLockMap.containsKey(filename)) {
-            fileToLockMap.put(filename, new ReentrantReadWriteLock());
-        }
-
-        return fileToLockMap.get(filename).readLock();
+        return getLock(filename).readLock();
     }
 
     /**
@@ -54,10 +50,24 @@ public class FileLockHolder {
      * @return A write lock for the file
      */
     public Lock getWriteLock(String filename) {
-        if (!fileToLockMap.containsKey(filename)) {
-            fileToLockMap.put(filename, new ReentrantReadWriteLock());
-        }
+        return getLock(filename).writeLock();
+    }
 
-        return fileToLockMap.get(filename).writeLock();
+    /**
+     * Gets the lock for a file, creating it if necessary. Concurrent callers always get the same
+     * lock.
+     * @param filename Filename of the file the lock is for
+     * @return The lock for the file
+     */
+    private ReentrantReadWriteLock getLock(String filename) {
+        ReentrantReadWriteLock lock = fileToLockMap.get(filename);
+        if (lock == null) {
+            ReentrantReadWriteLock newLock = new ReentrantReadWriteLock();
+            lock = fileToLockMap.putIfAbsent(filename, newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+        return lock;
     }
 }
@@ -0,0 +1,303 @@
+package de.mbdevelopment.android.rbtvsendeplan;
+
+import android.content.Context;
+import android.text.format.DateFormat;
+import android.text.format.DateUtils;
+import android.util.SparseArray;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Reads and writes a small prerendered copy of the first screen: the current and the following
+ * day of the schedule with their dates and start times already formatted. It is written whenever
+ * the schedule has been synchronized, so a cold start can show the list before the local
+ * schedule copy has been decoded. The copy is only used while the locale, time zone and time
+ * format it has been formatted for are still set.
+ */
+class FirstScreenFile {
+
+    /**
+     * Filename of the prerendered first screen
+     */
+    public static final String FILENAME = "first_screen.local";
+
+    /**
+     * Marks first screen files
+     */
+    private static final int MAGIC = 0x52425446; // "RBTF"
+
+    /**
+     * Version of the file format
+     */
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * Number of days stored, starting with the current day
+     */
+    private static final int DAY_COUNT = 2;
+
+    /**
+     * Upper bound of the events of a stored day, larger counts can only come from corrupt files
+     */
+    private static final int MAX_EVENTS = 1000;
+
+    /**
+     * A prerendered day
+     */
+    public static class Day {
+
+        /**
+         * Events of the day
+         */
+        public final EventGroup eventGroup;
+
+        /**
+         * Formatted date
+         */
+        public final String date;
+
+        /**
+         * Formatted start times in the order of the events
+         */
+        public final String[] times;
+
+        public Day(EventGroup eventGroup, String date, String[] times) {
+            this.eventGroup = eventGroup;
+            this.date = date;
+            this.times = times;
+        }
+    }
+
+    // Static helper functions only
+    private FirstScreenFile() {}
+
+    /**
+     * Writes the first screen of a schedule unless the stored copy already shows the same
+     * schedule from the current day on in the current format. Should not be called on the main
+     * thread.
+     * @param context Context used to access the internal storage and format dates
+     * @param snapshot The current schedule
+     */
+    public static void update(Context context, ScheduleSnapshot snapshot) {
+        if (snapshot == null || !snapshot.isComplete()) return;
+        long today = Utils.toEpochDay(Calendar.getInstance());
+        String format = getFormatKey(context);
+
+        // Find the current and the following days
+        SparseArray<EventGroup> eventGroups = snapshot.getEventGroups();
+        List<EventGroup> days = new ArrayList<>(DAY_COUNT);
+        for (int i = 0; i < eventGroups.size() && days.size() < DAY_COUNT; i++) {
+            EventGroup group = eventGroups.valueAt(i);
+            if (group.getDate() != null && Utils.toEpochDay(group.getDate()) >= today) {
+                days.add(group);
+            }
+        }
+        if (days.isEmpty() || Utils.toEpochDay(days.get(0).getDate()) != today) {
+            // Nothing to show for the current day, an older copy must not be shown either
+            Lock lock = FileLockHolder.getInstance().getWriteLock(FILENAME);
+            lock.lock();
+            try {
+                context.deleteFile(FILENAME);
+            } finally {
+                lock.unlock();
+            }
+            return;
+        }
+        if (isUpToDate(context, snapshot.getContentHash(), today, format)) return;
+
+        Lock lock = null;
+        try {
+            lock = FileLockHolder.getInstance().getWriteLock(FILENAME);
+            lock.lock();
+            // Written to a temporary file first, so a crash never leaves a partial copy behind
+            File tmp = context.getFileStreamPath(FILENAME + ".tmp");
+            FileOutputStream fo = new FileOutputStream(tmp);
+            DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(fo));
+            dout.writeInt(MAGIC);
+            dout.writeInt(FORMAT_VERSION);
+            dout.writeLong(snapshot.getContentHash());
+            dout.writeLong(today);
+            dout.writeUTF(format);
+            dout.writeInt(days.size());
+            for (EventGroup group : days) {
+                dout.writeLong(group.getDate().getTimeInMillis());
+                dout.writeUTF(ScheduleRenderModel.formatGroupDate(context, group));
+                dout.writeInt(group.getEvents().size());
+                for (Event e : group.getEvents()) {
+                    long start = e.getStartDate().getTimeInMillis();
+                    dout.writeLong(start);
+                    dout.writeLong(e.getEndDate().getTimeInMillis());
+                    dout.writeUTF(DateUtils.formatDateTime(context, start,
+                            DateUtils.FORMAT_SHOW_TIME));
+                    dout.writeUTF(e.getTitle() == null ? "" : e.getTitle());
+                    dout.writeInt(e.getType().ordinal());
+                    dout.writeUTF(e.getId());
+                    dout.writeBoolean(e.isRecurring());
+                    if (e.isRecurring()) dout.writeUTF(e.getRecurringId());
+                }
+            }
+            dout.close();
+            if (!tmp.renameTo(context.getFileStreamPath(FILENAME))) {
+                throw new IOException("Could not replace " + FILENAME);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (lock != null) {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Reads the prerendered first screen. The file is small enough to be read on the main thread.
+     * @param context Context used to access the internal storage
+     * @return The current day, followed by the next day if it is stored, or null if there is no
+     * copy for the current day in the current format
+     */
+    public static List<Day> read(Context context) {
+        long today = Utils.toEpochDay(Calendar.getInstance());
+        String format = getFormatKey(context);
+        List<Day> days = null;
+        Lock lock = null;
+        try {
+            lock = FileLockHolder.getInstance().getReadLock(FILENAME);
+            lock.lock();
+            FileInputStream fi = context.openFileInput(FILENAME);
+            DataInputStream di = new DataInputStream(new BufferedInputStream(fi));
+            try {
+                if (di.readInt() != MAGIC || di.readInt() != FORMAT_VERSION) return null;
+                di.readLong(); // Content hash
+                di.readLong(); // Day of the first stored day
+                if (!di.readUTF().equals(format)) return null;
+
+                int count = di.readInt();
+                if (count < 0 || count > DAY_COUNT) {
+                    throw new IOException("Invalid day count " + count);
+                }
+                days = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    Calendar date = Calendar.getInstance();
+                    date.setTimeInMillis(di.readLong());
+                    Day day = readDay(di, date);
+                    // The copy of yesterday still contains the current day
+                    if (Utils.toEpochDay(date) >= today) days.add(day);
+                }
+            } finally {
+                di.close();
+            }
+        } catch (FileNotFoundException e) {
+            // No sync has written a first screen yet
+        } catch (IOException | RuntimeException e) {
+            // Broken copies are not shown, the next sync rewrites them
+            e.printStackTrace();
+            days = null;
+        } finally {
+            if (lock != null) {
+                lock.unlock();
+            }
+        }
+
+        if (days == null || days.isEmpty()
+                || Utils.toEpochDay(days.get(0).eventGroup.getDate()) != today) {
+            return null;
+        }
+        return days;
+    }
+
+    /**
+     * Reads the remainder of a single day
+     * @param di The opened file, positioned after the date of the day
+     * @param date Date of the day
+     * @return The day
+     * @throws IOException if the file could not be read or is corrupt
+     */
+    private static Day readDay(DataInputStream di, Calendar date) throws IOException {
+        String formattedDate = di.readUTF();
+        int count = di.readInt();
+        if (count < 0 || count > MAX_EVENTS) throw new IOException("Invalid event count " + count);
+        List<Event> events = new ArrayList<>(count);
+        String[] times = new String[count];
+        Event.Type[] types = Event.Type.values();
+        for (int i = 0; i < count; i++) {
+            Calendar start = Calendar.getInstance();
+            start.setTimeInMillis(di.readLong());
+            Calendar end = Calendar.getInstance();
+            end.setTimeInMillis(di.readLong());
+            times[i] = di.readUTF();
+            String title = di.readUTF();
+            int ordinal = di.readInt();
+            if (ordinal < 0 || ordinal >= types.length) {
+                throw new IOException("Invalid event type " + ordinal);
+            }
+            Event.Type type = types[ordinal];
+            String id = di.readUTF();
+            if (di.readBoolean()) {
+                events.add(new Event(start, end, title, type, id, di.readUTF()));
+            } else {
+                events.add(new Event(start, end, title, type, id));
+            }
+        }
+        return new Day(new EventGroup(date, events), formattedDate, times);
+    }
+
+    /**
+     * Checks if the stored copy already shows a schedule from a day on in a format
+     * @param context Context used to access the internal storage
+     * @param contentHash Content hash of the schedule
+     * @param today The current epoch day
+     * @param format Key of the current format
+     * @return true if the copy does not have to be rewritten, false else
+     */
+    private static boolean isUpToDate(Context context, long contentHash, long today,
+                                      String format) {
+        boolean upToDate = false;
+        Lock lock = null;
+        try {
+            lock = FileLockHolder.getInstance().getReadLock(FILENAME);
+            lock.lock();
+            FileInputStream fi = context.openFileInput(FILENAME);
+            DataInputStream di = new DataInputStream(new BufferedInputStream(fi));
+            try {
+                upToDate = di.readInt() == MAGIC && di.readInt() == FORMAT_VERSION
+                        && di.readLong() == contentHash && di.readLong() == today
+                        && di.readUTF().equals(format);
+            } finally {
+                di.close();
+            }
+        } catch (FileNotFoundException e) {
+            // Not written yet
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (lock != null) {
+                lock.unlock();
+            }
+        }
+        return upToDate;
+    }
+
+    /**
+     * Gets a key of everything the formatted texts depend on
+     * @param context Context used to read the time format setting
+     * @return Locale, time zone and time format
+     */
+    private static String getFormatKey(Context context) {
+        return Locale.getDefault() + "|" + TimeZone.getDefault().getID() + "|"
+                + DateFormat.is24HourFormat(context);
+    }
+}
@@ -0,0 +1,69 @@
+package de.mbdevelopment.android.rbtvsendeplan;
+
+/**
+ * Helper functions of the 64 bit FNV-1a hash, used for event handles and schedule content hashes.
+ */
+class Fnv {
+
+    /**
+     * Offset basis of the 64 bit FNV-1a hash, the hash of no data
+     */
+    public static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+
+    /**
+     * Prime of the 64 bit FNV-1a hash
+     */
+    private static final long PRIME = 0x100000001b3L;
+
+    // Static helper functions only
+    private Fnv() {}
+
+    /**
+     * Adds the eight bytes of a number to a hash
+     * @param hash Current hash
+     * @param value Value to be added
+     * @return New hash
+     */
+    public static long add(long hash, long value) {
+        for (int i = 0; i < 8; i++) {
+            hash ^= (value >>> (i * 8)) & 0xff;
+            hash *= PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Adds the length and the two bytes of every character of a string to a hash, so
+     * consecutive strings cannot be confused
+     * @param hash Current hash
+     * @param value Value to be added, may be null
+     * @return New hash
+     */
+    public static long add(long hash, String value) {
+        if (value == null) return add(hash, -1);
+        hash = add(hash, value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            hash ^= c & 0xff;
+            hash *= PRIME;
+            hash ^= c >>> 8;
+            hash *= PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Adds every character of a string to a hash as a single unit. Used for ids, whose hashes must
+     * not change between versions.
+     * @param hash Current hash
+     * @param value Value to be added
+     * @return New hash
+     */
+    public static long addChars(long hash, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= PRIME;
+        }
+        return hash;
+    }
+}
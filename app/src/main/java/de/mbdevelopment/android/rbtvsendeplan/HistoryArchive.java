@@ -0,0 +1,658 @@
+package de.mbdevelopment.android.rbtvsendeplan;
+
+import android.content.Context;
+import android.preference.PreferenceManager;
+import android.util.SparseArray;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Long-term archive of past schedule days. Once a day has passed, its final version is appended to
+ * a segment file of its month. Each append is a deflate compressed block of delta and varint
+ * encoded day records. Past months are compacted into a single block in the background and the
+ * oldest months are dropped once the archive exceeds its size limit.
+ */
+class HistoryArchive {
+
+    /**
+     * Directory of the archive inside the internal storage
+     */
+    private static final String DIRECTORY = "history";
+
+    /**
+     * Extension of monthly segment files
+     */
+    private static final String EXTENSION = ".hist";
+
+    /**
+     * Maximum size of all segment files in bytes
+     */
+    private static final long MAX_ARCHIVE_SIZE = 256 * 1024;
+
+    /**
+     * Seconds per day
+     */
+    private static final long SECONDS_PER_DAY = 24 * 60 * 60;
+
+    /**
+     * Charset of stored strings
+     */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Single thread running all compactions one after another
+     */
+    private static final ExecutorService COMPACTOR = Executors.newSingleThreadExecutor();
+
+    /**
+     * Whether a compaction has been scheduled and not started yet
+     */
+    private static final AtomicBoolean compactionPending = new AtomicBoolean(false);
+
+    /**
+     * Serializes archiving, so no day is appended twice and the last archived day only advances
+     */
+    private static final Object ARCHIVE_LOCK = new Object();
+
+    // Static helper functions only
+    private HistoryArchive() {}
+
+    /**
+     * Appends all days of a schedule that have passed and are not archived yet. Should not be
+     * called on the main thread. Concurrent calls are executed one after another.
+     * @param context Context used to access the internal storage
+     * @param snapshot The current schedule
+     */
+    public static void archive(Context context, ScheduleSnapshot snapshot) {
+        if (snapshot == null || !snapshot.isComplete()) return;
+        synchronized (ARCHIVE_LOCK) {
+            archiveDays(context, snapshot);
+        }
+    }
+
+    /**
+     * Appends all days of a schedule that have passed and are newer than the last archived day.
+     * Must be called while holding {@link #ARCHIVE_LOCK}.
+     * @param context Context used to access the internal storage
+     * @param snapshot The current, complete schedule
+     */
+    private static void archiveDays(Context context, ScheduleSnapshot snapshot) {
+        SparseArray<EventGroup> eventGroups = snapshot.getEventGroups();
+        String prefKey = context.getString(R.string.pref_history_last_day);
+        long lastArchived = PreferenceManager.getDefaultSharedPreferences(context)
+                .getLong(prefKey, Long.MIN_VALUE);
+        long today = Utils.toEpochDay(Calendar.getInstance());
+
+        // Collect finished days by month
+        Map<String, List<EventGroup>> months = new TreeMap<>();
+        Map<Long, List<Event>> days = new TreeMap<>();
+        // Only days after the last archived day are added, so the day can only advance
+        long newestDay = lastArchived;
+        for (int i = 0; i < eventGroups.size(); i++) {
+            EventGroup group = eventGroups.valueAt(i);
+            if (group.getDate() == null) continue;
+            long day = Utils.toEpochDay(group.getDate());
+            if (day >= today || day <= lastArchived) continue;
+            String month = getMonthName(group.getDate());
+            List<EventGroup> list = months.get(month);
+            if (list == null) {
+                list = new ArrayList<>();
+                months.put(month, list);
+            }
+            list.add(group);
+            days.put(day, group.getEvents());
+            newestDay = Math.max(newestDay, day);
+        }
+        if (months.isEmpty()) return;
+
+        for (Map.Entry<String, List<EventGroup>> entry : months.entrySet()) {
+            appendBlock(context, entry.getKey(), encodeDays(entry.getValue()));
+        }
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putLong(prefKey, newestDay).apply();
+        SearchIndex.getInstance().addArchivedDays(days);
+
+        enforceRetention(context);
+        scheduleCompaction(context.getApplicationContext());
+    }
+
+    /**
+     * Compacts past months on the compaction thread unless a compaction is already pending. It
+     * covers all months, so further requests can be dropped until it has started.
+     * @param context Application context used to access the internal storage
+     */
+    private static void scheduleCompaction(Context context) {
+        if (!compactionPending.compareAndSet(false, true)) return;
+        COMPACTOR.execute(new Compactor(context));
+    }
+
+    /**
+     * Gets all archived events starting in a time range
+     * @param context Context used to access the internal storage
+     * @param from Start of the range, inclusive
+     * @param to End of the range, exclusive
+     * @return Archived events ordered by start date
+     */
+    public static List<Event> query(Context context, Calendar from, Calendar to) {
+        List<Event> result = new ArrayList<>();
+        String firstMonth = getMonthName(from);
+        String lastMonth = getMonthName(to);
+        for (File file : listSegments(context)) {
+            String month = getMonthName(file);
+            if (month.compareTo(firstMonth) < 0 || month.compareTo(lastMonth) > 0) continue;
+            for (List<Event> day : readSegment(context, month).values()) {
+                for (Event e : day) {
+                    if (e.getStartDate().compareTo(from) >= 0
+                            && e.getStartDate().compareTo(to) < 0) {
+                        result.add(e);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Gets all archived days. Should not be called on the main thread.
+     * @param context Context used to access the internal storage
+     * @return Archived events by epoch day
+     */
+    public static Map<Long, List<Event>> readAll(Context context) {
+        Map<Long, List<Event>> days = new TreeMap<>();
+        for (File file : listSegments(context)) {
+            days.putAll(readSegment(context, getMonthName(file)));
+        }
+        return days;
+    }
+
+    /**
+     * Gets all archived instances of a recurring event
+     * @param context Context used to access the internal storage
+     * @param recurringId The Google Calendar id of the recurring event
+     * @return Archived instances ordered by start date
+     */
+    public static List<Event> querySeries(Context context, String recurringId) {
+        List<Event> result = new ArrayList<>();
+        for (File file : listSegments(context)) {
+            for (List<Event> day : readSegment(context, getMonthName(file)).values()) {
+                for (Event e : day) {
+                    if (recurringId.equals(e.getRecurringId())) {
+                        result.add(e);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Merges all blocks of past months into a single block, keeping only the last version of
+     * each day
+     */
+    private static class Compactor implements Runnable {
+
+        /**
+         * Context used to access the internal storage
+         */
+        private final Context context;
+
+        public Compactor(Context context) {
+            this.context = context;
+        }
+
+        @Override
+        public void run() {
+            compactionPending.set(false);
+            String currentMonth = getMonthName(Calendar.getInstance());
+            for (File file : listSegments(context)) {
+                String month = getMonthName(file);
+                if (month.compareTo(currentMonth) >= 0) continue;
+                Lock lock = FileLockHolder.getInstance().getWriteLock(getLockName(month));
+                lock.lock();
+                try {
+                    if (countBlocks(file) > 1) {
+                        TreeMap<Long, List<Event>> days = new TreeMap<>();
+                        readBlocks(file, days);
+                        writeBlocks(file, compress(encodeEvents(days)));
+                    }
+                } catch (IOException | DataFormatException | RuntimeException e) {
+                    // Corrupt segments are left as they are
+                    e.printStackTrace();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the oldest months until the archive is within its size limit. The current month is
+     * never deleted.
+     * @param context Context used to access the internal storage
+     */
+    private static void enforceRetention(Context context) {
+        File[] segments = listSegments(context);
+        long size = 0;
+        for (File file : segments) {
+            size += file.length();
+        }
+        for (int i = 0; i < segments.length - 1 && size > MAX_ARCHIVE_SIZE; i++) {
+            Lock lock = FileLockHolder.getInstance()
+                    .getWriteLock(getLockName(getMonthName(segments[i])));
+            lock.lock();
+            try {
+                size -= segments[i].length();
+                if (!segments[i].delete()) {
+                    size += segments[i].length();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Appends a compressed block to the segment of a month
+     * @param context Context used to access the internal storage
+     * @param month Name of the month
+     * @param data Uncompressed block data
+     */
+    private static void appendBlock(Context context, String month, byte[] data) {
+        Lock lock = FileLockHolder.getInstance().getWriteLock(getLockName(month));
+        lock.lock();
+        try {
+            byte[] block = compress(data);
+            DataOutputStream out = new DataOutputStream(
+                    new FileOutputStream(getSegmentFile(context, month), true));
+            out.writeInt(block.length);
+            out.write(block);
+            out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the contents of a segment file with a single block
+     * @param file The segment file
+     * @param block Compressed block data
+     * @throws IOException if writing failed
+     */
+    private static void writeBlocks(File file, byte[] block) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp));
+        out.writeInt(block.length);
+        out.write(block);
+        out.close();
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not replace " + file.getName());
+        }
+    }
+
+    /**
+     * Counts the blocks of a segment file without decompressing them
+     * @param file The segment file
+     * @return Number of blocks
+     * @throws IOException if reading failed
+     */
+    private static int countBlocks(File file) throws IOException {
+        int count = 0;
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            while (true) {
+                int length = in.readInt();
+                if (in.skipBytes(length) < length) break;
+                count++;
+            }
+        } catch (EOFException e) {
+            // End of file
+        } finally {
+            in.close();
+        }
+        return count;
+    }
+
+    /**
+     * Reads all days of a month. Later versions of a day replace earlier ones.
+     * @param context Context used to access the internal storage
+     * @param month Name of the month
+     * @return Events by day
+     */
+    private static TreeMap<Long, List<Event>> readSegment(Context context, String month) {
+        TreeMap<Long, List<Event>> days = new TreeMap<>();
+        Lock lock = FileLockHolder.getInstance().getReadLock(getLockName(month));
+        lock.lock();
+        try {
+            readBlocks(getSegmentFile(context, month), days);
+        } catch (FileNotFoundException e) {
+            // Nothing archived for this month
+        } catch (IOException | DataFormatException | RuntimeException e) {
+            // A corrupt block makes the whole month unreadable, it is skipped
+            e.printStackTrace();
+            days.clear();
+        } finally {
+            lock.unlock();
+        }
+        return days;
+    }
+
+    /**
+     * Decodes all blocks of a segment file
+     * @param file The segment file
+     * @param days Map the decoded days are put into
+     * @throws IOException if reading failed
+     * @throws DataFormatException if a block is corrupt
+     */
+    private static void readBlocks(File file, Map<Long, List<Event>> days)
+            throws IOException, DataFormatException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            while (true) {
+                int length = in.readInt();
+                if (length < 0 || length > file.length()) {
+                    throw new IOException("Invalid block length in " + file.getName());
+                }
+                byte[] block = new byte[length];
+                in.readFully(block);
+                decodeDays(decompress(block), days);
+            }
+        } catch (EOFException e) {
+            // End of file
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Encodes schedule days as a block
+     * @param groups Days to be encoded
+     * @return Uncompressed block data
+     */
+    private static byte[] encodeDays(List<EventGroup> groups) {
+        TreeMap<Long, List<Event>> days = new TreeMap<>();
+        for (EventGroup group : groups) {
+            days.put(Utils.toEpochDay(group.getDate()), group.getEvents());
+        }
+        return encodeEvents(days);
+    }
+
+    /**
+     * Encodes days of events as a block. Start times are stored as deltas to the previous start,
+     * end times as durations.
+     * @param days Events by day
+     * @return Uncompressed block data
+     */
+    static byte[] encodeEvents(TreeMap<Long, List<Event>> days) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarint(out, days.size());
+        for (Map.Entry<Long, List<Event>> day : days.entrySet()) {
+            writeVarint(out, day.getKey());
+            writeVarint(out, day.getValue().size());
+            long previousStart = day.getKey() * SECONDS_PER_DAY;
+            for (Event e : day.getValue()) {
+                long start = e.getStartDate().getTimeInMillis() / 1000;
+                long end = e.getEndDate().getTimeInMillis() / 1000;
+                writeVarint(out, zigZag(start - previousStart));
+                writeVarint(out, end - start);
+                writeVarint(out, e.getType().ordinal());
+                writeString(out, e.getTitle());
+                writeString(out, e.getId());
+                writeString(out, e.getRecurringId());
+                previousStart = start;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes a block into days of events
+     * @param data Uncompressed block data
+     * @param days Map the decoded days are put into
+     */
+    static void decodeDays(byte[] data, Map<Long, List<Event>> days) {
+        int[] pos = {0};
+        // Every day and every event takes more than one byte, larger counts are corrupt
+        long dayCount = readVarint(data, pos);
+        if (dayCount < 0 || dayCount > data.length - pos[0]) {
+            throw new IllegalArgumentException("Invalid day count " + dayCount);
+        }
+        for (long i = 0; i < dayCount; i++) {
+            long day = readVarint(data, pos);
+            long eventCount = readVarint(data, pos);
+            if (eventCount < 0 || eventCount > data.length - pos[0]) {
+                throw new IllegalArgumentException("Invalid event count " + eventCount);
+            }
+            List<Event> events = new ArrayList<>((int) eventCount);
+            long previousStart = day * SECONDS_PER_DAY;
+            for (int j = 0; j < eventCount; j++) {
+                long start = previousStart + unZigZag(readVarint(data, pos));
+                long end = start + readVarint(data, pos);
+                Event.Type type = Event.Type.values()[(int) readVarint(data, pos)];
+                String title = readString(data, pos);
+                String id = readString(data, pos);
+                String recurringId = readString(data, pos);
+                Calendar startDate = Calendar.getInstance();
+                startDate.setTimeInMillis(start * 1000);
+                Calendar endDate = Calendar.getInstance();
+                endDate.setTimeInMillis(end * 1000);
+                events.add(new Event(startDate, endDate, title, type, id, recurringId));
+                previousStart = start;
+            }
+            days.put(day, events);
+        }
+    }
+
+    /**
+     * Compresses data with deflate
+     * @param data Data to be compressed
+     * @return Compressed data
+     */
+    static byte[] compress(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 16);
+        byte[] buffer = new byte[1024];
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    /**
+     * Decompresses deflate compressed data
+     * @param data Compressed data
+     * @return Decompressed data
+     * @throws DataFormatException if the data is corrupt
+     */
+    static byte[] decompress(byte[] data) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        inflater.setInput(data);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+        byte[] buffer = new byte[1024];
+        while (!inflater.finished()) {
+            int length = inflater.inflate(buffer);
+            if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                inflater.end();
+                throw new DataFormatException("Truncated block");
+            }
+            out.write(buffer, 0, length);
+        }
+        inflater.end();
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes an unsigned varint
+     * @param out Target stream
+     * @param value Non-negative value
+     */
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * Reads an unsigned varint
+     * @param data Source data
+     * @param pos Current position, will be advanced
+     * @return The value
+     */
+    private static long readVarint(byte[] data, int[] pos) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data[pos[0]++];
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Writes a string with its length. Null is stored as length 0.
+     * @param out Target stream
+     * @param value String, may be null
+     */
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        if (value == null) {
+            writeVarint(out, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        writeVarint(out, bytes.length + 1);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Reads a string written by {@link #writeString(ByteArrayOutputStream, String)}
+     * @param data Source data
+     * @param pos Current position, will be advanced
+     * @return The string or null
+     */
+    private static String readString(byte[] data, int[] pos) {
+        int length = (int) readVarint(data, pos);
+        if (length == 0) return null;
+        String value = new String(data, pos[0], length - 1, UTF_8);
+        pos[0] += length - 1;
+        return value;
+    }
+
+    /**
+     * Maps signed values to unsigned ones so small negative values produce short varints
+     * @param value Signed value
+     * @return Unsigned value
+     */
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /**
+     * Reverses {@link #zigZag(long)}
+     * @param value Unsigned value
+     * @return Signed value
+     */
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Lists all segment files ordered from oldest to newest month
+     * @param context Context used to access the internal storage
+     * @return Segment files
+     */
+    private static File[] listSegments(Context context) {
+        File[] files = getDirectory(context).listFiles();
+        if (files == null) return new File[0];
+        List<File> segments = new ArrayList<>(files.length);
+        for (File file : files) {
+            if (file.getName().endsWith(EXTENSION)) segments.add(file);
+        }
+        File[] result = segments.toArray(new File[segments.size()]);
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * Gets the archive directory and creates it if necessary
+     * @param context Context used to access the internal storage
+     * @return The archive directory
+     */
+    private static File getDirectory(Context context) {
+        File directory = new File(context.getFilesDir(), DIRECTORY);
+        if (!directory.isDirectory()) {
+            //noinspection ResultOfMethodCallIgnored
+            directory.mkdirs();
+        }
+        return directory;
+    }
+
+    /**
+     * Gets the segment file of a month
+     * @param context Context used to access the internal storage
+     * @param month Name of the month
+     * @return The segment file
+     */
+    private static File getSegmentFile(Context context, String month) {
+        return new File(getDirectory(context), month + EXTENSION);
+    }
+
+    /**
+     * Gets the name used to lock the segment file of a month
+     * @param month Name of the month
+     * @return Lock name
+     */
+    private static String getLockName(String month) {
+        return DIRECTORY + "/" + month + EXTENSION;
+    }
+
+    /**
+     * Gets the name of the month of a date, which is also the name of its segment file
+     * @param date The date
+     * @return Month name in the form yyyy-MM
+     */
+    private static String getMonthName(Calendar date) {
+        return String.format(Locale.US, "%04d-%02d", date.get(Calendar.YEAR),
+                date.get(Calendar.MONTH) + 1);
+    }
+
+    /**
+     * Gets the month name of a segment file
+     * @param segment The segment file
+     * @return Month name in the form yyyy-MM
+     */
+    private static String getMonthName(File segment) {
+        String name = segment.getName();
+        return name.substring(0, name.length() - EXTENSION.length());
+    }
+}
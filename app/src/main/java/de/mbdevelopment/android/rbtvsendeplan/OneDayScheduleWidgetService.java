@@ -38,8 +38,10 @@ public class OneDayScheduleWidgetService extends RemoteViewsService {
 }
 
 class OneDayScheduleRemoteViewsFactory implements RemoteViewsService.RemoteViewsFactory {
+    private SerializableSparseArray<EventGroup> eventGroups;
+    private long eventGroupsGeneration = -1;
     private List<Event> eventList;
-    private List<String> reminderList;
+    private ReminderState reminders;
     private final Context context;
     private final int appwidgetId;
     private final int rowPaddingLeft;
@@ -166,46 +168,29 @@ class OneDayScheduleRemoteViewsFactory implements RemoteViewsService.RemoteViews
         return false;
     }
 
-    @SuppressWarnings("unchecked") // Deserializing produces a compiler warning
     @Override
     public void onDataSetChanged() {
         // Doing heavy lifting is allowed here.
-        // Get data from storage
-        SerializableSparseArray<EventGroup> eventGroups = null;
-        HashMap<Event, Integer> reminders = null;
-        Lock eventLock = null;
-        Lock reminderLock = null;
-        try {
-            // Schedule
-            FileInputStream fi = context.openFileInput(DataService.ON_DISK_FILE);
-            eventLock = FileLockHolder.getInstance().getReadLock(DataService.ON_DISK_FILE);
-            eventLock.lock();
-            BufferedInputStream bi = new BufferedInputStream(fi);
-            ObjectInput oi = new ObjectInputStream(bi);
-            eventGroups = (SerializableSparseArray<EventGroup>) oi.readObject();
-            oi.close();
-
-            // Reminders
-            fi = context.openFileInput(ReminderService.BACKUP_EVENTS_FILENAME);
-            reminderLock = FileLockHolder.getInstance().getReadLock(ReminderService.BACKUP_EVENTS_FILENAME);
-            reminderLock.lock();
-            bi = new BufferedInputStream(fi);
-            oi = new ObjectInputStream(bi);
-            reminders = (HashMap<Event, Integer>) oi.readObject();
-            oi.close();
-
-        } catch (FileNotFoundException e) {
-            // No backup yet means no data yet
-        } catch (ClassNotFoundException | IOException e) {
-            e.printStackTrace();
-        } finally {
-            if (eventLock != null) {
-                eventLock.unlock();
-            }
-            if (reminderLock != null) {
-                reminderLock.unlock();
+        // Get the schedule, but only decode it if a new generation is available
+        ScheduleSnapshot snapshot = DataHolder.getInstance().getSnapshot();
+        if (snapshot == null || !snapshot.isComplete()) {
+            snapshot = null;
+            ScheduleFile.Header header = ScheduleFile.readHeader(context);
+            if (eventGroups == null || header == null
+                    || header.generation != eventGroupsGeneration) {
+                snapshot = ScheduleFile.read(context);
             }
         }
+        if (snapshot != null && snapshot.getGeneration() != eventGroupsGeneration) {
+            eventGroups = snapshot.getEventGroups();
+            eventGroupsGeneration = snapshot.getGeneration();
+        }
+
+        // Get reminders from the running reminder service or from storage otherwise
+        reminders = ReminderState.getCurrent();
+        if (reminders.getVersion() == 0) {
+            reminders = readReminders();
+        }
 
         if (eventGroups != null) {
             // Find shows to display. Display the current show, two before and 7 after. Maximum
@@ -229,13 +214,36 @@ class OneDayScheduleRemoteViewsFactory implements RemoteViewsService.RemoteViews
                         , pendingUpdateIntent);
             }
         }
-        
-        if (reminders != null) {
-            reminderList = new ArrayList<>(reminders.size());
-            for (Event e : reminders.keySet()) {
-                reminderList.add(e.getId());
+    }
+
+    /**
+     * Reads the reminders from storage if the reminder service is not running
+     * @return The stored reminders
+     */
+    @SuppressWarnings("unchecked") // Deserializing produces a compiler warning
+    private ReminderState readReminders() {
+        HashMap<Event, Integer> stored = null;
+        Lock reminderLock = null;
+        try {
+            reminderLock = FileLockHolder.getInstance().getReadLock(ReminderService.BACKUP_EVENTS_FILENAME);
+            reminderLock.lock();
+            FileInputStream fi = context.openFileInput(ReminderService.BACKUP_EVENTS_FILENAME);
+            BufferedInputStream bi = new BufferedInputStream(fi);
+            ObjectInput oi = new ObjectInputStream(bi);
+            stored = (HashMap<Event, Integer>) oi.readObject();
+            oi.close();
+        } catch (FileNotFoundException e) {
+            // No backup yet means no data yet
+        } catch (ClassNotFoundException | IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (reminderLock != null) {
+                reminderLock.unlock();
             }
         }
+
+        if (stored == null) return ReminderState.EMPTY;
+        return ReminderState.create(0, stored.keySet(), null);
     }
 
     /**
@@ -295,7 +303,7 @@ class OneDayScheduleRemoteViewsFactory implements RemoteViewsService.RemoteViews
      * @return true if there is a reminder set, false else
      */
     private boolean hasReminder(Event e) {
-        return reminderList != null && reminderList.contains(e.getId());
+        return reminders != null && reminders.contains(e);
     }
 
     /**
@@ -0,0 +1,330 @@
+package de.mbdevelopment.android.rbtvsendeplan;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.net.Uri;
+import android.support.v4.app.NotificationCompat;
+
+import java.text.DateFormat;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Prepares and posts reminder notifications. Everything a notification needs is resolved when the
+ * reminder is armed, so delivering it on an alarm only has to post the prepared payload.
+ * <p>
+ * Reminders delivered together are grouped under one summary notification that alerts once.
+ * Alerts are rate limited and reminders that have already alerted recently are only updated.
+ * Must only be used on a single thread.
+ */
+class ReminderNotifier {
+
+    /**
+     * Height of the Android Wear background in pixels. The drawable is downsampled to about this
+     * size when it is decoded.
+     */
+    private static final int WEAR_BG_HEIGHT = 400;
+
+    /**
+     * Group of all reminder notifications
+     */
+    private static final String GROUP_KEY = "reminders";
+
+    /**
+     * ID of the summary notification. Derived notification IDs are non-negative.
+     */
+    private static final int SUMMARY_ID = -1;
+
+    /**
+     * Minimum time between two alerts in milliseconds
+     */
+    private static final long ALERT_INTERVAL = 60 * 1000L;
+
+    /**
+     * Time in milliseconds after which a notification may alert again
+     */
+    private static final long REPEAT_INTERVAL = 60 * 60 * 1000L;
+
+    /**
+     * Prepared notification of a single reminder
+     */
+    static class Payload {
+
+        /**
+         * The event the notification has been prepared for
+         */
+        final Event event;
+
+        /**
+         * Preformatted notification text
+         */
+        final String text;
+
+        /**
+         * The ready-to-post notification with sound, vibration and light
+         */
+        final Notification alerting;
+
+        /**
+         * The ready-to-post notification without any alert
+         */
+        final Notification silent;
+
+        private Payload(Event event, String text, Notification alerting, Notification silent) {
+            this.event = event;
+            this.text = text;
+            this.alerting = alerting;
+            this.silent = silent;
+        }
+
+        /**
+         * Gets the notification title
+         * @return Title of the event
+         */
+        String getTitle() {
+            return event.getTitle() == null ? "" : event.getTitle();
+        }
+    }
+
+    /**
+     * Context used to build notifications
+     */
+    private final Context context;
+
+    /**
+     * Notification manager to post with
+     */
+    private final NotificationManager notificationManager;
+
+    /**
+     * Formats the start time in the notification text
+     */
+    private DateFormat timeFormat;
+
+    /**
+     * Vibrate on notifications
+     */
+    private boolean vibrate;
+
+    /**
+     * Flash the LED on notifications
+     */
+    private boolean lights;
+
+    /**
+     * Notification sound or null if silent
+     */
+    private Uri sound;
+
+    /**
+     * Intent opening the schedule, created on first use
+     */
+    private PendingIntent clickIntent;
+
+    /**
+     * Intent opening the Twitch stream, created on first use
+     */
+    private PendingIntent twitchIntent;
+
+    /**
+     * Downsampled Android Wear background, decoded on first use
+     */
+    private Bitmap wearBg;
+
+    /**
+     * Time of the last alert in milliseconds
+     */
+    private long lastAlertTime = -ALERT_INTERVAL;
+
+    /**
+     * Times of the last alert by notification ID
+     */
+    private final Map<Integer, Long> alertTimes = new HashMap<>();
+
+    /**
+     * Creates a notifier
+     * @param context Context used to build notifications
+     * @param settings The current settings
+     */
+    ReminderNotifier(Context context, Settings.Snapshot settings) {
+        this.context = context;
+        notificationManager =
+                (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+        reloadSettings(settings);
+    }
+
+    /**
+     * Applies the notification settings. Payloads prepared earlier keep the old settings.
+     * @param settings The current settings
+     */
+    void reloadSettings(Settings.Snapshot settings) {
+        timeFormat = DateFormat.getTimeInstance(DateFormat.SHORT);
+        vibrate = settings.vibrate;
+        lights = settings.lights;
+        sound = settings.sound;
+    }
+
+    /**
+     * Prepares the notification for an event
+     * @param event The event to be reminded of
+     * @return The prepared payload
+     */
+    Payload prepare(Event event) {
+        String title = event.getTitle() == null ? "" : event.getTitle();
+        String text = String.format(context.getString(R.string.reminder_text),
+                timeFormat.format(event.getStartDate().getTime()));
+        NotificationCompat.Builder builder = createBuilder(title, text)
+                .setWhen(event.getStartDate().getTimeInMillis())
+                .addAction(R.drawable.ic_play_circle_fill_white_36dp,
+                        context.getString(R.string.notification_open_twitch_action_text),
+                        getTwitchIntent())
+                .extend(new NotificationCompat.WearableExtender()
+                        .setBackground(getWearBackground()));
+        Notification silent = builder.build();
+        Notification alerting = setAlerts(builder).build();
+        return new Payload(event, text, alerting, silent);
+    }
+
+    /**
+     * Posts the prepared notifications of reminders that are due together. A single reminder is
+     * posted on its own, several reminders are grouped below a summary. At most one alert is
+     * played per delivery and none if the last alert has been too recent.
+     * @param due Prepared payloads of the due reminders
+     * @param notificationIds ID of the notification for each payload
+     * @param now Current time in milliseconds
+     */
+    void deliver(List<Payload> due, int[] notificationIds, long now) {
+        if (due.isEmpty()) return;
+
+        // Forget alerts that may be repeated by now
+        Iterator<Long> iterator = alertTimes.values().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next() >= REPEAT_INTERVAL) iterator.remove();
+        }
+
+        boolean alert = now - lastAlertTime >= ALERT_INTERVAL;
+        if (due.size() == 1) {
+            // Already shown notifications are only updated
+            alert &= !alertTimes.containsKey(notificationIds[0]);
+            Payload payload = due.get(0);
+            notificationManager.notify(notificationIds[0],
+                    alert ? payload.alerting : payload.silent);
+        } else {
+            // The children stay silent, the summary alerts once for all of them
+            boolean repeated = true;
+            NotificationCompat.InboxStyle style = new NotificationCompat.InboxStyle();
+            for (int i = 0; i < due.size(); i++) {
+                Payload payload = due.get(i);
+                repeated &= alertTimes.containsKey(notificationIds[i]);
+                notificationManager.notify(notificationIds[i], payload.silent);
+                style.addLine(payload.getTitle() + " - " + payload.text);
+            }
+            alert &= !repeated;
+
+            String title = String.format(context.getString(R.string.reminder_summary_title),
+                    due.size());
+            NotificationCompat.Builder builder = createBuilder(title, due.get(0).getTitle())
+                    .setNumber(due.size())
+                    .setStyle(style.setBigContentTitle(title))
+                    .setGroupSummary(true);
+            if (alert) setAlerts(builder);
+            notificationManager.notify(SUMMARY_ID, builder.build());
+        }
+
+        if (alert) lastAlertTime = now;
+        for (int id : notificationIds) {
+            if (alert || !alertTimes.containsKey(id)) alertTimes.put(id, now);
+        }
+    }
+
+    /**
+     * Creates a builder with the properties shared by all reminder notifications
+     * @param title Notification title
+     * @param text Notification text
+     * @return The new builder
+     */
+    private NotificationCompat.Builder createBuilder(String title, String text) {
+        return new NotificationCompat.Builder(context)
+                .setSmallIcon(R.drawable.ic_notification)
+                .setContentTitle(title)
+                .setContentText(text)
+                .setContentIntent(getClickIntent())
+                .setGroup(GROUP_KEY)
+                .setOnlyAlertOnce(true)
+                .setAutoCancel(true);
+    }
+
+    /**
+     * Adds sound, vibration and light to a notification according to the settings
+     * @param builder Builder of the notification
+     * @return The builder
+     */
+    private NotificationCompat.Builder setAlerts(NotificationCompat.Builder builder) {
+        if (vibrate) {
+            builder.setVibrate(new long[] {0, 500, 500, 500});
+        }
+        if (lights) {
+            builder.setLights(Color.RED, 3000, 3000);
+        }
+        if (sound != null) {
+            builder.setSound(sound);
+        }
+        return builder;
+    }
+
+    /**
+     * Gets the intent opening the schedule
+     * @return The cached intent
+     */
+    private PendingIntent getClickIntent() {
+        if (clickIntent == null) {
+            Intent intent = new Intent(context, ScheduleActivity.class);
+            clickIntent = PendingIntent.getActivity(context, 0, intent,
+                    PendingIntent.FLAG_UPDATE_CURRENT);
+        }
+        return clickIntent;
+    }
+
+    /**
+     * Gets the intent opening the Twitch stream
+     * @return The cached intent
+     */
+    private PendingIntent getTwitchIntent() {
+        if (twitchIntent == null) {
+            Intent intent = new Intent(Intent.ACTION_VIEW, Uri.parse(ScheduleActivity.TWITCH_URL));
+            twitchIntent = PendingIntent.getActivity(context, 0, intent, 0);
+        }
+        return twitchIntent;
+    }
+
+    /**
+     * Gets the Android Wear background. The drawable is decoded with the largest power of two
+     * sample size that keeps it at least {@link #WEAR_BG_HEIGHT} pixels high.
+     * @return The cached background
+     */
+    private Bitmap getWearBackground() {
+        if (wearBg == null) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeResource(context.getResources(), R.drawable.bg_wear, options);
+            int sampleSize = 1;
+            while (options.outHeight / (sampleSize * 2) >= WEAR_BG_HEIGHT) {
+                sampleSize *= 2;
+            }
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = sampleSize;
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+            wearBg = BitmapFactory.decodeResource(context.getResources(), R.drawable.bg_wear,
+                    options);
+        }
+        return wearBg;
+    }
+}
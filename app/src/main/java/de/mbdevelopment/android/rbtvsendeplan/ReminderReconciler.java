@@ -0,0 +1,187 @@
+package de.mbdevelopment.android.rbtvsendeplan;
+
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compares the set reminders with a new version of the schedule and computes all necessary
+ * changes as one batch. The schedule is indexed once by event id and by recurring event id, so
+ * the comparison is linear in the number of reminders and events. Events matching a rule-based
+ * subscription are added like instances of subscribed recurring events, unless the user has removed
+ * their reminder before.
+ */
+class ReminderReconciler {
+
+    /**
+     * Changes that have to be applied to the reminders
+     */
+    static class Result {
+
+        /**
+         * New instances of subscribed recurring events that need a reminder
+         */
+        final List<Event> added = new ArrayList<>();
+
+        /**
+         * New versions of events whose dates have changed and whose reminder has to be moved
+         */
+        final List<Event> moved = new ArrayList<>();
+
+        /**
+         * Events whose reminder has to be removed
+         */
+        final List<Event> removed = new ArrayList<>();
+
+        /**
+         * Ids of opted out events that are no longer part of the schedule
+         */
+        final List<String> expiredOptOuts = new ArrayList<>();
+
+        /**
+         * Checks if there is anything to be applied
+         * @return true if no reminder has to be changed, false else
+         */
+        boolean isEmpty() {
+            return added.isEmpty() && moved.isEmpty() && removed.isEmpty();
+        }
+    }
+
+    // Static helper functions only
+    private ReminderReconciler() {}
+
+    /**
+     * Computes the changes needed to bring the reminders up to date with a new schedule
+     * @param reminders Events with reminders by id
+     * @param recurring Recurring event ids with reminders for all instances, may be null
+     * @param eventGroups The new schedule
+     * @param now Current time in milliseconds
+     * @param reminderOffset Offset of reminders before the start of events in milliseconds
+     * @param subscriptions Rule-based subscriptions, may be null
+     * @param optOuts Ids of events whose reminder has been removed by the user and must not be
+     *                added again
+     * @return The changes to be applied
+     */
+    static Result reconcile(Map<String, Event> reminders, Collection<String> recurring,
+                            SparseArray<EventGroup> eventGroups, long now, int reminderOffset,
+                            SubscriptionMatcher subscriptions, Set<String> optOuts) {
+        List<EventGroup> groups = new ArrayList<>(eventGroups.size());
+        for (int i = 0; i < eventGroups.size(); i++) {
+            groups.add(eventGroups.valueAt(i));
+        }
+        return reconcile(reminders, recurring, groups, now, reminderOffset, subscriptions,
+                optOuts);
+    }
+
+    /**
+     * Computes the changes needed to bring the reminders up to date with a new schedule
+     * @param reminders Events with reminders by id
+     * @param recurring Recurring event ids with reminders for all instances, may be null
+     * @param eventGroups Days of the new schedule
+     * @param now Current time in milliseconds
+     * @param reminderOffset Offset of reminders before the start of events in milliseconds
+     * @param subscriptions Rule-based subscriptions, may be null
+     * @param optOuts Ids of events whose reminder has been removed by the user and must not be
+     *                added again
+     * @return The changes to be applied
+     */
+    static Result reconcile(Map<String, Event> reminders, Collection<String> recurring,
+                            List<EventGroup> eventGroups, long now, int reminderOffset,
+                            SubscriptionMatcher subscriptions, Set<String> optOuts) {
+        // Index the new schedule
+        Map<String, Event> eventsById = new HashMap<>();
+        Map<String, List<Event>> instancesBySeries = new HashMap<>();
+        for (EventGroup group : eventGroups) {
+            for (Event e : group.getEvents()) {
+                eventsById.put(e.getId(), e);
+                if (e.getRecurringId() != null) {
+                    List<Event> instances = instancesBySeries.get(e.getRecurringId());
+                    if (instances == null) {
+                        instances = new ArrayList<>();
+                        instancesBySeries.put(e.getRecurringId(), instances);
+                    }
+                    instances.add(e);
+                }
+            }
+        }
+
+        Result result = new Result();
+        Set<String> addedIds = new HashSet<>();
+
+        // Check existing reminders
+        for (Event current : reminders.values()) {
+            Event e = eventsById.get(current.getId());
+            if (e == null) {
+                // Event does no longer exist
+                result.removed.add(current);
+            } else if (e.getStartDate().getTimeInMillis()
+                    != current.getStartDate().getTimeInMillis()
+                    || e.getEndDate().getTimeInMillis()
+                    != current.getEndDate().getTimeInMillis()) {
+                // Event date has changed. Only keep the reminder if the start has not passed.
+                // TODO notify user of changed start date?
+                if (e.getStartDate().getTimeInMillis() > now) {
+                    result.moved.add(e);
+                } else {
+                    result.removed.add(current);
+                }
+            }
+        }
+
+        // Opt-outs are only needed as long as the events can be added
+        for (String id : optOuts) {
+            if (!eventsById.containsKey(id)) result.expiredOptOuts.add(id);
+        }
+
+        // Add future instances of subscribed recurring events
+        if (recurring != null) {
+            for (String recurringId : recurring) {
+                List<Event> instances = instancesBySeries.get(recurringId);
+                if (instances == null) continue;
+                for (Event e : instances) {
+                    if (isUpcoming(e, reminders, now, reminderOffset, optOuts)
+                            && addedIds.add(e.getId())) {
+                        result.added.add(e);
+                    }
+                }
+            }
+        }
+
+        // Add future events matching a subscription rule
+        if (subscriptions != null && !subscriptions.isEmpty()) {
+            for (Event e : eventsById.values()) {
+                if (!addedIds.contains(e.getId())
+                        && isUpcoming(e, reminders, now, reminderOffset, optOuts)
+                        && subscriptions.matches(e)) {
+                    addedIds.add(e.getId());
+                    result.added.add(e);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Checks if a reminder can still be added for an event
+     * @param e The event to be checked
+     * @param reminders Events with reminders by id
+     * @param now Current time in milliseconds
+     * @param reminderOffset Offset of reminders before the start of events in milliseconds
+     * @param optOuts Ids of events that must not be added again
+     * @return true if the event has no reminder yet, has not been opted out of and its reminder
+     * time lies in the future
+     */
+    private static boolean isUpcoming(Event e, Map<String, Event> reminders, long now,
+                                      int reminderOffset, Set<String> optOuts) {
+        long start = e.getStartDate().getTimeInMillis();
+        return !reminders.containsKey(e.getId()) && !optOuts.contains(e.getId()) && start > now
+                && start - reminderOffset > now;
+    }
+}
@@ -1,25 +1,21 @@
 package de.mbdevelopment.android.rbtvsendeplan;
 
 import android.app.AlarmManager;
-import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Color;
-import android.media.RingtoneManager;
-import android.net.Uri;
 import android.os.Binder;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Message;
 import android.os.Messenger;
 import android.os.RemoteException;
 import android.preference.PreferenceManager;
-import android.support.v4.app.NotificationCompat;
 import android.util.SparseArray;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
@@ -31,14 +27,18 @@ import java.io.ObjectInput;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
-import java.text.DateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
-import java.util.Date;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.locks.Lock;
 
@@ -46,14 +46,17 @@ import java.util.concurrent.locks.Lock;
  * Manages reminders for events. Always start this Service by calling startService() before binding
  * to it by calling onBind() to ensure it stays running in the background, or else the mapping
  * is lost and reminders cannot be cancelled anymore.
+ * <p>
+ * All reminder state is owned by a single worker thread. Public commands are queued to it and
+ * report their completion through a {@link Callback} on the main thread, while queries read the
+ * immutable {@link ReminderState} that is published after every command.
  */
-public class ReminderService extends Service
-        implements SharedPreferences.OnSharedPreferenceChangeListener {
+public class ReminderService extends Service implements Settings.Listener {
 
     /**
      * Version of this service for upgrade purposes
      */
-    private static final int VERSION = 2;
+    private static final int VERSION = 3;
 
     /**
      * Flag indicating that a reminder status has changed
@@ -71,27 +74,28 @@ public class ReminderService extends Service
     private static final String BACKUP_RECURRING_FILENAME = "recurring.bak";
 
     /**
-     * Identifier string for the event id in {@link Intent} extras
+     * Filename for the backup of the events whose reminder has been removed by the user
      */
-    private static final String EXTRA_ID = "event_id";
+    private static final String BACKUP_OPT_OUTS_FILENAME = "opt_outs.bak";
 
     /**
-     * Identifier string for the event title in {@link Intent} extras
+     * Identifier string for the event id in {@link Intent} extras of alarms set by older versions
      */
-    private static final String EXTRA_TITLE = "event_title";
+    private static final String EXTRA_ID = "event_id";
 
     /**
-     * Identifier string for the event start time in {@link Intent} extras
+     * Intent action of the reminder alarm
      */
-    private static final String EXTRA_TIME = "event_time";
+    private static final String ACTION_REMINDER_ALARM =
+            "de.mbdevelopment.android.rbtvsendeplan.REMINDER_ALARM";
 
     /**
-     * Signal to indicate a freshly booted system
+     * Request code of the reminder alarm
      */
-    public static final String EXTRA_BOOT = "boot";
+    private static final int ALARM_REQUEST_CODE = 0;
 
     /**
-     * The preference name the counter is saved under
+     * The preference name the alarm counter of older versions was saved under
      */
     private static final String PREF_COUNTER = "reminder_service_counter";
 
@@ -101,20 +105,40 @@ public class ReminderService extends Service
     private boolean mRunning = false;
 
     /**
-     * Mapping to link {@link Event#id} and a corresponding reminder alarm Intent
+     * Mapping to link {@link Event#id} and the corresponding {@link Event}
      */
-    private final Map<String, Integer> eventToIntentMap = new HashMap<>();
+    private final Map<String, Event> idToEventMap = new HashMap<>();
 
     /**
-     * Mapping to link {@link Event#id} and the corresponding {@link Event}
+     * Min-heap of events with reminders ordered by start date. Removed reminders are left in the
+     * heap and skipped once they reach the top, see {@link #isQueued(Event)}.
      */
-    private final Map<String, Event> idToEventMap = new HashMap<>();
+    private final PriorityQueue<Event> reminderQueue = new PriorityQueue<>(16,
+            new Comparator<Event>() {
+                @Override
+                public int compare(Event lhs, Event rhs) {
+                    long l = lhs.getStartDate().getTimeInMillis();
+                    long r = rhs.getStartDate().getTimeInMillis();
+                    return l < r ? -1 : (l == r ? 0 : 1);
+                }
+            });
+
+    /**
+     * Trigger time of the currently armed reminder alarm or -1 if none is armed
+     */
+    private long armedAlarmTime = -1;
 
     /**
      * List of the recurringEventIds for which reminders are set for all instances of the event
      */
     private List<String> recurringReminders = new ArrayList<>();
 
+    /**
+     * Ids of events whose reminder has been removed by the user. Subscribed recurring events and
+     * subscription rules do not add reminders for them again.
+     */
+    private HashSet<String> optOuts = new HashSet<>();
+
     /**
      * Binder given to clients on bind
      */
@@ -126,20 +150,26 @@ public class ReminderService extends Service
     private AlarmManager alarmManager;
 
     /**
-     * Used as alarm ID
+     * Request codes of the per-event alarms of older versions, restored from the backup until
+     * they have been cancelled by the upgrade
      */
-    private int alarmCounter;
+    private List<Integer> legacyRequestCodes;
 
     /**
      * Messenger used to communicate with the activity
      */
-    private Messenger messageHandler;
+    private volatile Messenger messageHandler;
 
     /**
      * Offset before the start time of events that is used to schedule reminders in milliseconds
      */
     private int reminderOffset;
 
+    /**
+     * Queued after the final backup to stop the backup writer once everything has been written
+     */
+    private static final BackupQueueElement STOP_WRITER = new BackupQueueElement();
+
     /**
      * Queue used to schedule event lists to be written to internal storage
      */
@@ -161,9 +191,82 @@ public class ReminderService extends Service
     private int upgradeVersion;
 
     /**
-     * Bitmap that holds the Android Wear Fullscreen background image
+     * Prepares and posts reminder notifications. Only used on the worker thread.
+     */
+    private ReminderNotifier notifier;
+
+    /**
+     * Prepared notifications by event id
      */
-    private Bitmap wearBg;
+    private final Map<String, ReminderNotifier.Payload> payloads = new HashMap<>();
+
+    /**
+     * Indicates if the backup has been restored, so commands can be executed right away
+     */
+    private boolean restoreFinished = false;
+
+    /**
+     * Commands that arrived while the backup was still being restored. They are replayed in order
+     * once the restore has finished.
+     */
+    private final List<Runnable> pendingCommands = new ArrayList<>();
+
+    /**
+     * Guards {@link #stopped}, so no command is posted after the worker has started to shut down
+     */
+    private final Object stopLock = new Object();
+
+    /**
+     * Indicates if the worker is shutting down and accepts no further commands
+     */
+    private boolean stopped = false;
+
+    /**
+     * Handler used to deliver command completions on the main thread
+     */
+    private Handler mainHandler;
+
+    /**
+     * Thread that owns all reminder state and executes commands in order
+     */
+    private HandlerThread workerThread;
+
+    /**
+     * Handler used to queue commands on the worker thread. Commands are only posted through
+     * {@link #submit(Runnable, Callback)}, which holds them back until the restore has finished.
+     */
+    private Handler workHandler;
+
+    /**
+     * Version of the last published reminder state
+     */
+    private long stateVersion = 0;
+
+    /**
+     * Generation of the last schedule snapshot the reminders have been updated with
+     */
+    private long lastProcessedGeneration = -1;
+
+    /**
+     * Rule-based subscriptions. Only replaced on the worker thread.
+     */
+    private SubscriptionMatcher subscriptions = SubscriptionMatcher.EMPTY;
+
+    /**
+     * Last complete schedule that has been reconciled, used to apply changed subscription rules
+     */
+    private ScheduleSnapshot lastSnapshot;
+
+    /**
+     * Receives the completion of an asynchronous command
+     */
+    public interface Callback {
+
+        /**
+         * Called on the main thread once the command has been executed
+         */
+        void onComplete();
+    }
 
     /**
      * Binder class that grants access to this service. The only method will return a reference to
@@ -187,11 +290,9 @@ public class ReminderService extends Service
 
         private final ArrayBlockingQueue<BackupQueueElement> queue;
         private BackupQueueElement currentElement;
-        private final Service service;
 
-        public BackupWriter(ArrayBlockingQueue<BackupQueueElement> queue, Service service) {
+        public BackupWriter(ArrayBlockingQueue<BackupQueueElement> queue) {
             this.queue = queue;
-            this.service = service;
         }
 
         @Override
@@ -200,15 +301,14 @@ public class ReminderService extends Service
                 Lock lock = null;
                 try{
                     currentElement = queue.take();
-                    FileOutputStream fo = openFileOutput(currentElement.filename, MODE_PRIVATE);
+                    if (currentElement == STOP_WRITER) return;
                     lock = FileLockHolder.getInstance().getWriteLock(currentElement.filename);
                     lock.lock();
+                    FileOutputStream fo = openFileOutput(currentElement.filename, MODE_PRIVATE);
                     BufferedOutputStream bo = new BufferedOutputStream(fo);
                     ObjectOutput oo = new ObjectOutputStream(bo);
                     oo.writeObject(currentElement.element);
                     oo.close();
-                    PreferenceManager.getDefaultSharedPreferences(service)
-                            .edit().putInt(PREF_COUNTER, alarmCounter).commit();
                 } catch (InterruptedException e) {
                     // Do not wait for more data.
                     return;
@@ -223,22 +323,50 @@ public class ReminderService extends Service
         }
     }
 
+    /**
+     * Reads the backup files and restores the reminders on the worker thread
+     */
+    private class BackupRestorer implements Runnable {
+
+        @Override
+        public void run() {
+            final HashMap<Event, Integer> events = readEventsBackup();
+            final List<String> recurring = readRecurringBackup();
+            final HashSet<String> optedOut = readOptOutsBackup();
+
+            if (events != null) {
+                // Remove reminders for past events
+                Calendar now = Calendar.getInstance();
+                Iterator<Map.Entry<Event, Integer>> iterator = events.entrySet().iterator();
+                while (iterator.hasNext()) {
+                    if (iterator.next().getKey().getStartDate().compareTo(now) < 0) {
+                        iterator.remove();
+                    }
+                }
+            }
+
+            onBackupRestored(events, recurring, optedOut);
+        }
+    }
+
     @Override
     public void onCreate() {
-        // Load preferences
-        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
-        // Preferences are in minutes. Multiply by 60.000 to convert to milliseconds
-        reminderOffset = 60000 * Integer.parseInt(
-                preferences.getString(getString(R.string.pref_reminder_offset_key),
-                        getString(R.string.pref_reminder_offset_default)));
-        preferences.registerOnSharedPreferenceChangeListener(this);
+        mainHandler = new Handler();
+        workerThread = new HandlerThread("ReminderWorker");
+        workerThread.start();
+        workHandler = new Handler(workerThread.getLooper());
+        alarmManager = (AlarmManager) getSystemService(ALARM_SERVICE);
 
-        // Android Wear fullscreen background image from drawable
-        wearBg = BitmapFactory.decodeResource(getApplicationContext().getResources(),
-                R.drawable.bg_wear);
+        // Load settings
+        Settings.Snapshot settings = Settings.getInstance().get();
+        reminderOffset = settings.reminderOffset;
+        subscriptions = settings.subscriptions;
+        Settings.getInstance().addListener(this);
 
-        // Restore counter as not to duplicate any alarm IDs
-        alarmCounter = preferences.getInt(PREF_COUNTER, 0);
+        notifier = new ReminderNotifier(this, settings);
+
+        // Load preferences
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
 
         // Get upgrade flag for version 13
         version13Upgraded = preferences.getBoolean(getString(R.string.pref_version_upgraded), false);
@@ -247,30 +375,17 @@ public class ReminderService extends Service
         upgradeVersion = preferences.getInt(getString(R.string.pref_reminder_service_version), 0);
 
         // Start backup writer thread
-        BackupWriter backupWriter = new BackupWriter(writeQueue, this);
+        BackupWriter backupWriter = new BackupWriter(writeQueue);
         backupWriterThread = new Thread(backupWriter);
         backupWriterThread.start();
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        alarmManager = (AlarmManager) getSystemService(ALARM_SERVICE);
-
-        // Restore alarmCounter
-        if (intent != null && intent.hasExtra(EXTRA_BOOT)) {
-            // Start fresh counter as there are no used alarm IDs yet
-            alarmCounter = 0;
-            restoreBackup(true);
-        }
-
-        // Restore reminders on service restore
-        if(!mRunning) {
-            restoreBackup(false);
-        }
-
-        // Upgrade
-        if (upgradeVersion < VERSION) {
-            performUpgrade();
+        // Restore reminders on service (re)start. This happens on the worker thread, commands that
+        // arrive before are queued until the restore has finished.
+        if (!mRunning) {
+            workHandler.post(new BackupRestorer());
         }
 
         // Get messenger from activity
@@ -279,13 +394,15 @@ public class ReminderService extends Service
             messageHandler = (Messenger) extras.get(ScheduleActivity.EXTRA_MESSENGER);
         }
 
-        // Catch alarm events
-        if (intent != null && intent.hasExtra(EXTRA_ID)) {
-            String title = intent.getStringExtra(EXTRA_TITLE);
-            Date date = (Date) intent.getSerializableExtra(EXTRA_TIME);
-            // Handle fail safe
-            handleAlarm(intent.getStringExtra(EXTRA_ID), title == null ? "" : title,
-                    date == null ? Calendar.getInstance().getTime() : date);
+        // Catch alarm events. Alarms of older versions carry the event id instead of the action.
+        if (intent != null && (ACTION_REMINDER_ALARM.equals(intent.getAction())
+                || intent.hasExtra(EXTRA_ID))) {
+            submit(new Runnable() {
+                @Override
+                public void run() {
+                    handleAlarm();
+                }
+            }, null);
         }
 
         // Indicate this instance has been started at least once, so a backup should have been
@@ -296,64 +413,125 @@ public class ReminderService extends Service
     }
 
     /**
-     * Handles setting a notification for an event identified by id
-     * @param id ID of the event that caused the notification
-     */
-    private void handleAlarm(String id, String title, Date date) {
-        // Notification
-        SharedPreferences pref = PreferenceManager.getDefaultSharedPreferences(this);
-        DateFormat df = DateFormat.getTimeInstance(DateFormat.SHORT);
-        Intent intent = new Intent(this, ScheduleActivity.class);
-
-        Uri twitch = Uri.parse(ScheduleActivity.TWITCH_URL);
-        Intent twitchIntent = new Intent(Intent.ACTION_VIEW, twitch);
-        PendingIntent twitchPendingIntent = PendingIntent.getActivity(this, 0, twitchIntent, 0);
-
-        // Android Wear specific notification settings
-        NotificationCompat.WearableExtender wearableExtender =
-                new NotificationCompat.WearableExtender()
-                        .setBackground(wearBg);
-
-        PendingIntent clickIntent = PendingIntent.getActivity(this, 0, intent,
-                PendingIntent.FLAG_UPDATE_CURRENT);
-        NotificationCompat.Builder builder = new NotificationCompat.Builder(this)
-                .setSmallIcon(R.drawable.ic_notification)
-                .setContentTitle(title)
-                .setContentText(String.format(getString(R.string.reminder_text), df.format(date)))
-                .setContentIntent(clickIntent)
-                .addAction(R.drawable.ic_play_circle_fill_white_36dp,
-                        getString(R.string.notification_open_twitch_action_text),
-                        twitchPendingIntent)
-                .extend(wearableExtender)
-                .setAutoCancel(true);
-        if (pref.getBoolean(getString(R.string.pref_vibrate_key), true)) {
-            builder.setVibrate(new long[] {0, 500, 500, 500});
-        }
-        if (pref.getBoolean(getString(R.string.pref_led_key), true)) {
-            builder.setLights(Color.RED, 3000, 3000);
-        }
-        String notificationPref = pref.getString(getString(R.string.pref_notification_ringtone_key),
-                RingtoneManager.getDefaultUri(RingtoneManager.TYPE_NOTIFICATION).toString());
-        if (notificationPref.length() > 0) {
-            // The string for 'silent' is "" with a length of 0, therefore a sound has to be set for
-            // lengths higher than that
-            builder.setSound(Uri.parse(notificationPref));
-        }
-        NotificationManager notificationManager =
-                (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
-        // There should always be only one show running at a time, so we can use a single ID
-        notificationManager.notify(0, builder.build());
-
-        // Remove handled event from mapping and check service termination condition
-        eventToIntentMap.remove(id);
-        idToEventMap.remove(id);
-
-        // Store backup
-        scheduleBackup();
-
-        // Notify activity
-        sendMessage(FLAG_DATA_CHANGED);
-        if (eventToIntentMap.isEmpty()) stopSelf();
+     * Queues a command on the worker thread. It is executed right away if the backup has already
+     * been restored or once the restore has finished otherwise. Afterwards the new state is
+     * published and the callback is invoked on the main thread. Commands submitted after the
+     * service has been destroyed are dropped, but their callback is still invoked.
+     * @param command The command to be executed
+     * @param callback Completion callback, may be null
+     */
+    private void submit(final Runnable command, final Callback callback) {
+        final Runnable completing = new Runnable() {
+            @Override
+            public void run() {
+                command.run();
+                publishState();
+                if (callback != null) {
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onComplete();
+                        }
+                    });
+                }
+            }
+        };
+        boolean queued = false;
+        synchronized (stopLock) {
+            if (!stopped) {
+                queued = workHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (restoreFinished) {
+                            completing.run();
+                        } else {
+                            pendingCommands.add(completing);
+                        }
+                    }
+                });
+            }
+        }
+        if (!queued && callback != null) {
+            // The worker has been stopped, callers must not wait forever
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onComplete();
+                }
+            });
+        }
+    }
+
+    /**
+     * Publishes an immutable copy of the reminder state for queries from other threads. Must be
+     * called on the worker thread.
+     */
+    private void publishState() {
+        ReminderState.publish(ReminderState.create(++stateVersion, idToEventMap.values(),
+                recurringReminders));
+    }
+
+    /**
+     * Delivers all reminders that are due in the current minute and arms the alarm for the next
+     * one
+     */
+    private void handleAlarm() {
+        // The alarm has been consumed
+        armedAlarmTime = -1;
+
+        // Reminders due within the current minute are delivered together
+        long now = System.currentTimeMillis();
+        long limit = now - now % 60000 + 60000;
+        List<Event> due = new ArrayList<>();
+        Event next;
+        while ((next = reminderQueue.peek()) != null) {
+            if (!isQueued(next)) {
+                reminderQueue.poll();
+            } else if (next.getStartDate().getTimeInMillis() - reminderOffset < limit) {
+                due.add(reminderQueue.poll());
+                // Remove handled event from mapping
+                idToEventMap.remove(next.getId());
+            } else {
+                break;
+            }
+        }
+
+        Map<Long, Integer> codes = deriveCodes(due);
+        List<ReminderNotifier.Payload> duePayloads = new ArrayList<>(due.size());
+        int[] notificationIds = new int[due.size()];
+        for (int i = 0; i < due.size(); i++) {
+            Event e = due.get(i);
+            duePayloads.add(getPayload(e));
+            notificationIds[i] = codes.get(e.getHandle());
+            payloads.remove(e.getId());
+        }
+        notifier.deliver(duePayloads, notificationIds, now);
+
+        armNextAlarm();
+        if (!due.isEmpty()) {
+            // Store backup
+            scheduleBackup();
+
+            // Notify activity
+            sendMessage(FLAG_DATA_CHANGED);
+        }
+
+        // Check service termination condition
+        if (idToEventMap.isEmpty()) stopSelf();
+    }
+
+    /**
+     * Gets the prepared notification for an event and prepares it if that has not happened yet
+     * @param event The event to be reminded of
+     * @return The prepared payload
+     */
+    private ReminderNotifier.Payload getPayload(Event event) {
+        ReminderNotifier.Payload payload = payloads.get(event.getId());
+        if (payload == null || payload.event != event) {
+            payload = notifier.prepare(event);
+            payloads.put(event.getId(), payload);
+        }
+        return payload;
     }
 
     /**
@@ -380,14 +558,33 @@ public class ReminderService extends Service
 
     @Override
     public void onDestroy() {
-        // Save alarm counter
-        PreferenceManager.getDefaultSharedPreferences(this).edit()
-                .putInt(PREF_COUNTER, alarmCounter).commit();
+        Settings.getInstance().removeListener(this);
 
-        // Shut down backup writer thread
-        if (backupWriterThread != null) {
-            backupWriterThread.interrupt();
+        // Accept no further commands. The worker finishes the queued ones, then stops. Completions
+        // of these commands are still delivered.
+        synchronized (stopLock) {
+            stopped = true;
         }
+        workHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                // Commands still waiting for the restore are executed by restoring now. This only
+                // happens if the service has been bound but never started.
+                if (!restoreFinished) new BackupRestorer().run();
+
+                // Write the final state and wait until the writer has stored everything queued
+                scheduleBackup();
+                try {
+                    writeQueue.put(STOP_WRITER);
+                    backupWriterThread.join();
+                } catch (InterruptedException e) {
+                    backupWriterThread.interrupt();
+                }
+                // Readers have to fall back to the backup files
+                ReminderState.publish(ReminderState.EMPTY);
+                Looper.myLooper().quit();
+            }
+        });
     }
 
     /**
@@ -399,26 +596,9 @@ public class ReminderService extends Service
         if (idToEventMap.containsKey(event.getId())) return;
 
         // Add reminder
-        Intent alarmIntent = new Intent(this, ReminderService.class);
-        alarmIntent.putExtra(EXTRA_ID, event.getId());
-        alarmIntent.putExtra(EXTRA_TITLE, event.getTitle());
-        alarmIntent.putExtra(EXTRA_TIME, event.getStartDate().getTime());
-        PendingIntent pendingAlarmIntent = PendingIntent.getService(this, alarmCounter,
-                alarmIntent, 0);
-
-        eventToIntentMap.put(event.getId(), alarmCounter++);
         idToEventMap.put(event.getId(), event);
-
-        // Use exact alarm to ensure that notifications are delivered on time
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
-            alarmManager.set(AlarmManager.RTC_WAKEUP,
-                    event.getStartDate().getTimeInMillis() - reminderOffset,
-                    pendingAlarmIntent);
-        } else {
-            alarmManager.setExact(AlarmManager.RTC_WAKEUP,
-                    event.getStartDate().getTimeInMillis() - reminderOffset,
-                    pendingAlarmIntent);
-        }
+        reminderQueue.add(event);
+        armNextAlarm();
     }
 
     /**
@@ -427,158 +607,340 @@ public class ReminderService extends Service
      */
     private void removeReminder(Event event) {
         idToEventMap.remove(event.getId());
-        if (eventToIntentMap.containsKey(event.getId())) {
-            Intent intent = new Intent(this, ReminderService.class);
-            PendingIntent cancelIntent = PendingIntent.getService(this,
-                    eventToIntentMap.remove(event.getId()), intent,
-                    PendingIntent.FLAG_CANCEL_CURRENT);
-            alarmManager.cancel(cancelIntent);
-        }
+        payloads.remove(event.getId());
+        armNextAlarm();
     }
 
     /**
-     * Toggles the reminder state for an event. An event that had a reminder set will have it
-     * removed, an event that had no reminder set will have one set now.
-     * @param event The event to get it's reminder state toggled
+     * Derives codes for intents or notifications from the compact identities of events, so no
+     * mapping has to be stored. Collisions are resolved by probing the following codes in the
+     * order of the handles, so the codes do not depend on the order of the events.
+     * @param events Events to derive the codes for
+     * @return Distinct non-negative codes by handle
      */
-    public void toggleState(Event event) {
-        if (idToEventMap.containsKey(event.getId())) {
-            removeReminder(event);
-        } else {
-            addReminder(event);
+    private static Map<Long, Integer> deriveCodes(Collection<Event> events) {
+        long[] handles = new long[events.size()];
+        int i = 0;
+        for (Event e : events) {
+            handles[i++] = e.getHandle();
         }
-        scheduleBackup();
+        Arrays.sort(handles);
+
+        Map<Long, Integer> codes = new HashMap<>();
+        Set<Integer> used = new HashSet<>();
+        for (long handle : handles) {
+            if (codes.containsKey(handle)) continue;
+            int code = (int) (handle ^ (handle >>> 32)) & Integer.MAX_VALUE;
+            while (!used.add(code)) {
+                code = (code + 1) & Integer.MAX_VALUE;
+            }
+            codes.put(handle, code);
+        }
+        return codes;
     }
 
     /**
-     * Determines if there exists an alarm for an event
-     * @param event The event to be checked
-     * @return true if an alarm is set, false else
+     * Checks if a queued event still has its reminder
+     * @param event Event from the reminder queue
+     * @return true if the reminder is still set, false if it has been removed or replaced
      */
-    public boolean hasReminder(Event event) {
-        return eventToIntentMap.containsKey(event.getId());
+    private boolean isQueued(Event event) {
+        return idToEventMap.get(event.getId()) == event;
     }
 
     /**
-     * Updates the reminder dates based on the supplied event group data
-     * @param eventGroups new data
+     * Arms the reminder alarm for the earliest reminder. Does nothing if it is armed already.
      */
-    public void updateReminderDates(SparseArray<EventGroup> eventGroups) {
-        if (eventGroups == null || eventGroups.size() < 1) return;
-
-        // Perform one-time upgrades on application version changes that require it
-        if (!version13Upgraded) refreshReminderData(eventGroups);
+    private void armNextAlarm() {
+        // Drop removed reminders from the top of the queue
+        while (!reminderQueue.isEmpty() && !isQueued(reminderQueue.peek())) {
+            reminderQueue.poll();
+        }
+        // Rebuild the queue if most of it consists of removed reminders
+        if (reminderQueue.size() > 2 * idToEventMap.size() + 16) {
+            reminderQueue.clear();
+            reminderQueue.addAll(idToEventMap.values());
+        }
 
-        boolean hasChanged = false;
-        for (int i = 0; i < eventGroups.size(); i++) {
-            // Check all events in each group
-            for (Event e : eventGroups.get(i).getEvents()) {
-                if (idToEventMap.containsKey(e.getId())) {
-                    hasChanged = hasChanged || updateEventDate(e);
-                }
+        Intent alarmIntent = new Intent(this, ReminderService.class);
+        alarmIntent.setAction(ACTION_REMINDER_ALARM);
+        if (reminderQueue.isEmpty()) {
+            if (armedAlarmTime != -1) {
+                alarmManager.cancel(PendingIntent.getService(this, ALARM_REQUEST_CODE,
+                        alarmIntent, PendingIntent.FLAG_UPDATE_CURRENT));
+                armedAlarmTime = -1;
             }
+            return;
         }
 
-        // Remove reminders for events that are no longer present in the data
-        hasChanged = hasChanged || removeObsoleteReminders(eventGroups);
+        long time = reminderQueue.peek().getStartDate().getTimeInMillis() - reminderOffset;
 
-        // Add reminders for new instances of recurring events on the index
-        hasChanged = hasChanged || addNewRecurringInstances(eventGroups);
+        // Prepare the notification now, so the alarm only has to post it
+        getPayload(reminderQueue.peek());
 
-        // Inform activity if any changes occurred
-        if (hasChanged) sendMessage(FLAG_DATA_CHANGED);
+        if (time == armedAlarmTime) return;
+        PendingIntent pendingAlarmIntent = PendingIntent.getService(this, ALARM_REQUEST_CODE,
+                alarmIntent, PendingIntent.FLAG_UPDATE_CURRENT);
+
+        // Use exact alarm to ensure that notifications are delivered on time
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            alarmManager.set(AlarmManager.RTC_WAKEUP, time, pendingAlarmIntent);
+        } else {
+            alarmManager.setExact(AlarmManager.RTC_WAKEUP, time, pendingAlarmIntent);
+        }
+        armedAlarmTime = time;
+    }
 
-        scheduleBackup();
+    /**
+     * Toggles the reminder state for an event. An event that had a reminder set will have it
+     * removed, an event that had no reminder set will have one set now.
+     * @param event The event to get it's reminder state toggled
+     * @param callback Completion callback, may be null
+     */
+    public void toggleState(Event event, Callback callback) {
+        beginTransaction().toggle(event).commit(callback);
+    }
+
+    /**
+     * Starts collecting reminder changes that are applied together
+     * @return A new transaction
+     */
+    public Transaction beginTransaction() {
+        return new Transaction();
     }
 
     /**
-     * Updates the reminder for an event identified by it's id if necessary
-     * @param event1 Event to be checked
-     * @return true if a reminder has been changed, false else
+     * Collects reminder changes that are applied together by {@link #commit(Callback)} with a
+     * single backup write and a single completion callback
      */
-    private boolean updateEventDate(Event event1) {
-        Event event2 = idToEventMap.get(event1.getId());
-        if (!hasReminder(event2)) {
-            // No reminder has to be updated since none is set
-            return false;
+    public class Transaction {
+
+        /**
+         * Changes in the order they have been requested
+         */
+        private final List<Runnable> operations = new ArrayList<>();
+
+        /**
+         * Indicates if the transaction has been committed
+         */
+        private boolean committed = false;
+
+        /**
+         * Toggles the reminder state for an event
+         * @param event The event to get it's reminder state toggled
+         * @return This transaction
+         */
+        public Transaction toggle(final Event event) {
+            operations.add(new Runnable() {
+                @Override
+                public void run() {
+                    if (idToEventMap.containsKey(event.getId())) {
+                        removeReminder(event);
+                        optOuts.add(event.getId());
+                    } else {
+                        addReminder(event);
+                        optOuts.remove(event.getId());
+                    }
+                }
+            });
+            return this;
         }
 
-        if (event1.getStartDate().compareTo(event2.getStartDate()) != 0
-                || event1.getEndDate().compareTo(event2.getEndDate()) != 0) {
-            // Event date has changed, the reminder has to be updated
-            removeReminder(event2);
-            // Only add new reminder, if the start date has not passed
-            // TODO notify user of changed start date?
-            if (Calendar.getInstance().compareTo(event1.getStartDate()) == -1) {
-                addReminder(event1);
+        /**
+         * Sets a reminder for an event if it has none
+         * @param event The event to be reminded of
+         * @return This transaction
+         */
+        public Transaction add(final Event event) {
+            operations.add(new Runnable() {
+                @Override
+                public void run() {
+                    addReminder(event);
+                    optOuts.remove(event.getId());
+                }
+            });
+            return this;
+        }
+
+        /**
+         * Removes the reminder for an event if it has one
+         * @param event The event no longer to be reminded of
+         * @return This transaction
+         */
+        public Transaction remove(final Event event) {
+            operations.add(new Runnable() {
+                @Override
+                public void run() {
+                    if (idToEventMap.containsKey(event.getId())) {
+                        removeReminder(event);
+                        optOuts.add(event.getId());
+                    }
+                }
+            });
+            return this;
+        }
+
+        /**
+         * Adds reminders for all instances of a recurring event
+         * @param event An instance of the recurring event
+         * @param eventList The list of all available events
+         * @return This transaction
+         */
+        public Transaction subscribe(final Event event, final List<Event> eventList) {
+            operations.add(new Runnable() {
+                @Override
+                public void run() {
+                    ReminderService.this.subscribe(event, eventList);
+                }
+            });
+            return this;
+        }
+
+        /**
+         * Deletes reminders for all instances of a recurring event
+         * @param event An instance of the recurring event
+         * @return This transaction
+         */
+        public Transaction unsubscribe(final Event event) {
+            operations.add(new Runnable() {
+                @Override
+                public void run() {
+                    ReminderService.this.unsubscribe(event);
+                }
+            });
+            return this;
+        }
+
+        /**
+         * Applies all collected changes on the worker thread
+         * @param callback Completion callback, may be null
+         */
+        public void commit(Callback callback) {
+            if (committed) throw new IllegalStateException("Transaction already committed");
+            committed = true;
+            if (operations.isEmpty()) {
+                submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Nothing to apply, only complete
+                    }
+                }, callback);
+                return;
             }
 
-            return true;
+            final Runnable[] changes = operations.toArray(new Runnable[operations.size()]);
+            submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (Runnable change : changes) {
+                        change.run();
+                    }
+                    // New reminders have to be checked against the next schedule update. Removed
+                    // reminders are recorded as opt-outs, so the check does not add them again.
+                    lastProcessedGeneration = -1;
+                    scheduleBackup();
+                }
+            }, callback);
         }
+    }
 
-        return false;
+    /**
+     * Determines if there exists an alarm for an event
+     * @param event The event to be checked
+     * @return true if an alarm is set, false else
+     */
+    public boolean hasReminder(Event event) {
+        return ReminderState.getCurrent().contains(event);
     }
 
     /**
-     * Deletes reminders for events that are no longer in the data set
-     * @param eventGroups The underlying data set
+     * Updates the reminder dates based on the supplied event group data
+     * @param snapshot New version of the schedule
+     * @param callback Completion callback, may be null
      */
-    private boolean removeObsoleteReminders(SparseArray<EventGroup> eventGroups) {
-        if (eventGroups == null) return false;
-        boolean hasChanged = false;
-        Iterator<Map.Entry<String, Event>> iterator = idToEventMap.entrySet().iterator();
-        Map.Entry<String, Event> entry;
-        while (iterator.hasNext()) {
-            entry = iterator.next();
-            boolean stillExists = false;
-            for (int i = 0; i < eventGroups.size(); i++) {
-                stillExists = eventGroups.get(i).contains(entry.getValue().getId());
-                if (stillExists) break;
-            }
-            if (!stillExists) {
-                // Event does not longer exist in the underlying data set -> remove it
-                // Important: Remove from idToEventMap with the iterator first to prevent race a
-                // condition! The iterator would fail if removeReminder() removed data from it's
-                // underlying set!
-                iterator.remove();
-                removeReminder(entry.getValue());
-                hasChanged = true;
+    public void updateReminderDates(final ScheduleSnapshot snapshot, Callback callback) {
+        // Partial schedules would cause reminders of the missing days to be removed
+        if (snapshot == null || !snapshot.isComplete() || snapshot.getEventGroups() == null
+                || snapshot.getEventGroups().size() < 1) {
+            // Nothing to update, only complete after the queued commands
+            submit(new Runnable() {
+                @Override
+                public void run() {
+                    // Nothing to apply
+                }
+            }, callback);
+            return;
+        }
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                reconcile(snapshot);
             }
+        }, callback);
+    }
+
+    /**
+     * Updates the reminders to a new version of the schedule. Must be called on the worker thread.
+     * @param snapshot New version of the schedule
+     */
+    private void reconcile(ScheduleSnapshot snapshot) {
+        SparseArray<EventGroup> eventGroups = snapshot.getEventGroups();
+        // Nothing to do if this version of the schedule has already been processed
+        if (snapshot.getGeneration() == lastProcessedGeneration
+                && snapshot.getGeneration() != ScheduleSnapshot.NO_GENERATION) {
+            return;
         }
+        lastProcessedGeneration = snapshot.getGeneration();
+        lastSnapshot = snapshot;
+
+        // Perform one-time upgrades on application version changes that require it
+        boolean refreshed = !version13Upgraded;
+        if (refreshed) refreshReminderData(eventGroups);
 
-        return hasChanged;
+        // Compute all changes in one pass and apply them as a batch
+        ReminderReconciler.Result result = ReminderReconciler.reconcile(idToEventMap,
+                recurringReminders, eventGroups, System.currentTimeMillis(), reminderOffset,
+                subscriptions, optOuts);
+        optOuts.removeAll(result.expiredOptOuts);
+        applyResult(result);
+
+        if (refreshed || !result.isEmpty() || !result.expiredOptOuts.isEmpty()) scheduleBackup();
     }
 
     /**
-     * Adds reminders for new instances of recurring events that are listed in the index. New means
-     * that the instance does not have a reminder set yet. Existing reminders will not be altered by
-     * this function. Past instances will not be added.
-     * @param eventGroups The underlying data set
-     * @return true if a reminder has been added, false else
+     * Applies the changes of a reconciliation. Must be called on the worker thread.
+     * @param result The changes to be applied
      */
-    private boolean addNewRecurringInstances(SparseArray<EventGroup> eventGroups) {
-        if (eventGroups == null || recurringReminders == null || recurringReminders.isEmpty()) {
-            return false;
+    private void applyResult(ReminderReconciler.Result result) {
+        for (Event e : result.removed) {
+            removeReminder(e);
         }
-        Calendar now = Calendar.getInstance();
-        Calendar startOffset;
-        boolean hasChanged = false;
-        for (int i = 0; i < eventGroups.size(); i++) {
-            for (Event e : eventGroups.get(i).getEvents()) {
-                if (!idToEventMap.containsKey(e.getId())
-                        && recurringReminders.contains(e.getRecurringId())) {
-                    // Add only future reminders accounting for the offset
-                    startOffset = (Calendar) e.getStartDate().clone();
-                    startOffset.add(Calendar.MILLISECOND, -1 * reminderOffset);
-                    if (!e.isCurrentlyRunning() && startOffset.compareTo(now) == 1) {
-                        addReminder(e);
-                        hasChanged = true;
-                    }
-                }
-            }
+        for (Event e : result.moved) {
+            removeReminder(idToEventMap.get(e.getId()));
+            addReminder(e);
+        }
+        for (Event e : result.added) {
+            addReminder(e);
         }
 
-        return hasChanged;
+        // Inform activity if any changes occurred
+        if (!result.isEmpty()) sendMessage(FLAG_DATA_CHANGED);
+    }
+
+    /**
+     * Replaces the subscription rules and adds reminders for all newly matching events of the last
+     * schedule. Must be called on the worker thread.
+     * @param newSubscriptions The new rules
+     */
+    private void onSubscriptionsChange(SubscriptionMatcher newSubscriptions) {
+        subscriptions = newSubscriptions;
+        if (lastSnapshot == null) return;
+
+        ReminderReconciler.Result result = ReminderReconciler.reconcile(idToEventMap,
+                recurringReminders, lastSnapshot.getEventGroups(), System.currentTimeMillis(),
+                reminderOffset, subscriptions, optOuts);
+        applyResult(result);
+        if (!result.isEmpty()) scheduleBackup();
     }
 
     /**
@@ -586,9 +948,11 @@ public class ReminderService extends Service
      * to internal storage
      */
     private void scheduleBackup() {
+        // The file format maps events to request codes, which are derived instead of stored now
         HashMap<Event, Integer> backupMap = new HashMap<>();
+        Map<Long, Integer> codes = deriveCodes(idToEventMap.values());
         for (Event e : idToEventMap.values()) {
-            backupMap.put(e, eventToIntentMap.get(e.getId()));
+            backupMap.put(e, codes.get(e.getHandle()));
         }
         BackupQueueElement eventsBackup = new BackupQueueElement();
         eventsBackup.element = backupMap;
@@ -596,58 +960,68 @@ public class ReminderService extends Service
         BackupQueueElement recurringBackup = new BackupQueueElement();
         recurringBackup.element = recurringReminders;
         recurringBackup.filename = BACKUP_RECURRING_FILENAME;
+        BackupQueueElement optOutsBackup = new BackupQueueElement();
+        optOutsBackup.element = new HashSet<>(optOuts);
+        optOutsBackup.filename = BACKUP_OPT_OUTS_FILENAME;
         try {
             writeQueue.put(eventsBackup);
             writeQueue.put(recurringBackup);
+            writeQueue.put(optOutsBackup);
         } catch (InterruptedException e) {
             // Stop writing
         }
     }
 
     /**
-     * Tries to read the backup file from internal storage and restore the reminders. Should only be
-     * called if the system has been (re)booted, because only in that case the alarms are lost.
-     * @param hard Set to true if new alarms should be created, false if only the references should
-     *             be restored
+     * Is called on the worker thread after the backup files have been read. Restores the reminders,
+     * performs pending upgrades and replays all commands that arrived in the meantime.
+     * @param events The restored event reminders without past events or null if none were found
+     * @param recurring The restored recurring reminders or null if none were found
+     * @param optedOut The restored opt-outs or null if none were found
      */
-    private void restoreBackup(boolean hard) {
-        HashMap<Event, Integer> events = readEventsBackup();
-        List<String> recurring = readRecurringBackup();
+    private void onBackupRestored(HashMap<Event, Integer> events, List<String> recurring,
+                                  HashSet<String> optedOut) {
+        if (events != null) {
+            restoreBackup(events, recurring);
+        }
+        if (optedOut != null) optOuts = optedOut;
+        restoreFinished = true;
 
-        if (events == null) {
-            // No backup loaded
-            return;
+        // Upgrade
+        if (upgradeVersion < VERSION) {
+            performUpgrade();
         }
 
-        // Remove reminders for past events
-        Calendar now = Calendar.getInstance();
-        Event currentEvent;
-        Iterator<Map.Entry<Event, Integer>> iterator = events.entrySet().iterator();
-        while (iterator.hasNext()) {
-            currentEvent = iterator.next().getKey();
-            if (currentEvent.getStartDate().compareTo(now) < 0) {
-                iterator.remove();
-            }
+        // Replay commands in the order they arrived
+        Runnable[] commands = new Runnable[pendingCommands.size()];
+        pendingCommands.toArray(commands);
+        pendingCommands.clear();
+        for (Runnable command : commands) {
+            command.run();
         }
 
-        if (hard) {
-            // Restore backup and create new reminders/alarms.
-            for (Map.Entry<Event, Integer> entry : events.entrySet()) {
-                addReminder(entry.getKey());
-            }
-            recurringReminders = recurring;
-            //  On hard restore, new IDs are set that need to be stored now
-            scheduleBackup();
-        } else {
-            // Restore backup but do not create new reminders/alarms.
-            // Event instances
-            for (Map.Entry<Event, Integer> entry : events.entrySet()) {
-                idToEventMap.put(entry.getKey().getId(), entry.getKey());
-                eventToIntentMap.put(entry.getKey().getId(), entry.getValue());
-            }
-            // Recurring event list
-            recurringReminders = recurring;
+        // The activity might have shown an incomplete reminder state until now
+        publishState();
+        sendMessage(FLAG_DATA_CHANGED);
+    }
+
+    /**
+     * Restores the reminders from a backup and re-arms the reminder alarm
+     * @param events The event reminders from the backup
+     * @param recurring The recurring reminders from the backup
+     */
+    private void restoreBackup(HashMap<Event, Integer> events, List<String> recurring) {
+        // Event instances
+        for (Event e : events.keySet()) {
+            idToEventMap.put(e.getId(), e);
         }
+        reminderQueue.addAll(events.keySet());
+        armNextAlarm();
+        // Alarms of older versions have to be cancelled by the upgrade. After a boot they are
+        // gone already and cancelling them does no harm.
+        if (upgradeVersion < 3) legacyRequestCodes = new ArrayList<>(events.values());
+        // Recurring event list
+        recurringReminders = recurring;
     }
 
     /**
@@ -659,9 +1033,9 @@ public class ReminderService extends Service
         HashMap<Event, Integer> events = null;
         Lock lock = null;
         try {
-            FileInputStream fi = openFileInput(BACKUP_EVENTS_FILENAME);
             lock = FileLockHolder.getInstance().getReadLock(BACKUP_EVENTS_FILENAME);
             lock.lock();
+            FileInputStream fi = openFileInput(BACKUP_EVENTS_FILENAME);
             BufferedInputStream bi = new BufferedInputStream(fi);
             ObjectInput oi = new ObjectInputStream(bi);
             events = (HashMap<Event, Integer>) oi.readObject();
@@ -688,9 +1062,9 @@ public class ReminderService extends Service
         List<String> recurring = null;
         Lock lock = null;
         try {
-            FileInputStream fi = openFileInput(BACKUP_RECURRING_FILENAME);
             lock = FileLockHolder.getInstance().getReadLock(BACKUP_RECURRING_FILENAME);
             lock.lock();
+            FileInputStream fi = openFileInput(BACKUP_RECURRING_FILENAME);
             BufferedInputStream bi = new BufferedInputStream(fi);
             ObjectInput oi = new ObjectInputStream(bi);
             recurring = (List<String>) oi.readObject();
@@ -708,31 +1082,82 @@ public class ReminderService extends Service
         return recurring;
     }
 
+    /**
+     * Tries to read the opt-outs backup
+     * @return The set of opted out event ids or null if none is found
+     */
+    @SuppressWarnings("unchecked") // Deserializing produces a compiler warning
+    private HashSet<String> readOptOutsBackup() {
+        HashSet<String> optedOut = null;
+        Lock lock = null;
+        try {
+            lock = FileLockHolder.getInstance().getReadLock(BACKUP_OPT_OUTS_FILENAME);
+            lock.lock();
+            FileInputStream fi = openFileInput(BACKUP_OPT_OUTS_FILENAME);
+            BufferedInputStream bi = new BufferedInputStream(fi);
+            ObjectInput oi = new ObjectInputStream(bi);
+            optedOut = (HashSet<String>) oi.readObject();
+            oi.close();
+        } catch (FileNotFoundException e) {
+            // No backup in storage
+        } catch (ClassNotFoundException | IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (lock != null) {
+                lock.unlock();
+            }
+        }
+
+        return optedOut;
+    }
+
     @Override
-    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
-        // Listen for reminder offset changes
-        if (key.equals(getString(R.string.pref_reminder_offset_key))) {
-            onOffsetChange(Integer.parseInt(sharedPreferences.getString(key,
-                    getString(R.string.pref_reminder_offset_default))) * 60000); // see onCreate()
+    public void onSettingsChanged(Settings.Change change, final Settings.Snapshot settings) {
+        switch (change) {
+            case REMINDER_OFFSET:
+                submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        onOffsetChange(settings.reminderOffset);
+                    }
+                }, null);
+                break;
+            case NOTIFICATION:
+                submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Prepared notifications use the old settings
+                        notifier.reloadSettings(settings);
+                        payloads.clear();
+                        armNextAlarm();
+                    }
+                }, null);
+                break;
+            case SUBSCRIPTIONS:
+                // The rules have been compiled already, the worker only swaps them in
+                submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        onSubscriptionsChange(settings.subscriptions);
+                    }
+                }, null);
+                break;
+            default:
+                // Refresh and download settings do not affect reminders
+                break;
         }
     }
 
     /**
-     * Changes the offset of all scheduled reminders to the new value by removing and re-adding the
-     * reminders
+     * Changes the offset of all scheduled reminders to the new value. The order of reminders does
+     * not depend on the offset, so only the alarm has to be moved.
      * @param newOffset The new offset in milliseconds
      */
     private void onOffsetChange(int newOffset) {
         if (reminderOffset == newOffset) return;
 
         reminderOffset = newOffset;
-        Event[] events = new Event[idToEventMap.size()];
-        idToEventMap.values().toArray(events);
-        // Reset all reminders to incorporate the new offset
-        for (Event event : events) {
-            removeReminder(event);
-            addReminder(event);
-        }
+        armNextAlarm();
     }
 
     /**
@@ -742,15 +1167,25 @@ public class ReminderService extends Service
      * @return true if a reminder is set for all instances, false else
      */
     public boolean hasRecurringReminder(Event event) {
-        return recurringReminders != null && recurringReminders.contains(event.getRecurringId());
+        return ReminderState.getCurrent().containsRecurring(event);
     }
 
     /**
      * Adds reminders for all instances of a recurring event
      * @param event An instance of the recurring event
      * @param eventList The list of all available events
+     * @param callback Completion callback, may be null
+     */
+    public void addRecurringReminder(Event event, List<Event> eventList, Callback callback) {
+        beginTransaction().subscribe(event, eventList).commit(callback);
+    }
+
+    /**
+     * Adds reminders for all instances of a recurring event. Must be called on the worker thread.
+     * @param event An instance of the recurring event
+     * @param eventList The list of all available events
      */
-    public void addRecurringReminder(Event event, List<Event> eventList) {
+    private void subscribe(Event event, List<Event> eventList) {
         Calendar now = Calendar.getInstance();
         Calendar startOffset;
         String recurringId = event.getRecurringId();
@@ -762,21 +1197,30 @@ public class ReminderService extends Service
                 if (!e.isCurrentlyRunning() && startOffset.compareTo(now) == 1) {
                     // Add reminders for future instances only
                     addReminder(e);
+                    optOuts.remove(e.getId());
                 }
             }
         }
         // Add recurringEventId to index
         if (recurringReminders == null) recurringReminders = new ArrayList<>();
-        recurringReminders.add(recurringId);
-
-        scheduleBackup();
+        if (!recurringReminders.contains(recurringId)) recurringReminders.add(recurringId);
     }
 
     /**
      * Deletes reminders for all instances of a recurring event
      * @param event An instance of the recurring event
+     * @param callback Completion callback, may be null
      */
-    public void deleteRecurringReminder(Event event) {
+    public void deleteRecurringReminder(Event event, Callback callback) {
+        beginTransaction().unsubscribe(event).commit(callback);
+    }
+
+    /**
+     * Deletes reminders for all instances of a recurring event. Must be called on the worker
+     * thread.
+     * @param event An instance of the recurring event
+     */
+    private void unsubscribe(Event event) {
         String recurringId = event.getRecurringId();
         Event[] events = new Event[idToEventMap.size()];
         idToEventMap.values().toArray(events);
@@ -787,9 +1231,7 @@ public class ReminderService extends Service
             }
         }
 
-        recurringReminders.remove(recurringId);
-
-        scheduleBackup();
+        if (recurringReminders != null) recurringReminders.remove(recurringId);
     }
 
     /**
@@ -802,15 +1244,16 @@ public class ReminderService extends Service
             currentGroup = eventGroups.get(i);
             for (Event e : currentGroup.getEvents()) {
                 if (idToEventMap.containsKey(e.getId())) {
-                    // Replace old event object by new one
+                    // Replace old event object by new one, which has to be queued again
                     idToEventMap.put(e.getId(), e);
+                    reminderQueue.add(e);
                 }
             }
         }
 
         // Save state
         PreferenceManager.getDefaultSharedPreferences(this).edit()
-                .putBoolean(getString(R.string.pref_version_upgraded), true).commit();
+                .putBoolean(getString(R.string.pref_version_upgraded), true).apply();
         version13Upgraded = true;
     }
 
@@ -818,18 +1261,24 @@ public class ReminderService extends Service
      * Upgrades service data to comply to new data formats and to assure backward compatibility.
      */
     private void performUpgrade() {
-        // Reminder intents changed
-        if (upgradeVersion < 2) {
-            // Re-set all reminders to comply to the new format
-            Event[] events = new Event[idToEventMap.size()];
-            idToEventMap.values().toArray(events);
-            for (Event e : events) {
-                removeReminder(e);
-                addReminder(e);
+        // One alarm per reminder has been replaced by a single alarm for the earliest reminder
+        if (upgradeVersion < 3) {
+            // Cancel the alarms of older versions using the stored request codes
+            if (legacyRequestCodes != null) {
+                Intent intent = new Intent(this, ReminderService.class);
+                for (Integer requestCode : legacyRequestCodes) {
+                    if (requestCode == null) continue;
+                    alarmManager.cancel(PendingIntent.getService(this, requestCode, intent,
+                            PendingIntent.FLAG_CANCEL_CURRENT));
+                }
+                legacyRequestCodes = null;
             }
-            upgradeVersion = 2;
+            armNextAlarm();
+            upgradeVersion = 3;
+            // Request codes are derived from the events now, the counter is no longer needed
             PreferenceManager.getDefaultSharedPreferences(this).edit()
-                    .putInt(getString(R.string.pref_reminder_service_version), 2).apply();
+                    .putInt(getString(R.string.pref_reminder_service_version), 3)
+                    .remove(PREF_COUNTER).apply();
         }
     }
 }
@@ -0,0 +1,121 @@
+package de.mbdevelopment.android.rbtvsendeplan;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Immutable version of the reminder state. Events are stored as sorted arrays of their compact
+ * handles, so lookups need no locks and run in O(log n). The {@link ReminderService} publishes a
+ * new version after every change, which readers in the same process can query without touching
+ * the backup files.
+ */
+class ReminderState {
+
+    /**
+     * State without any reminders. Its version 0 indicates that no state has been published.
+     */
+    static final ReminderState EMPTY = new ReminderState(0, new long[0], new long[0]);
+
+    /**
+     * Currently published state
+     */
+    private static final AtomicReference<ReminderState> current =
+            new AtomicReference<>(EMPTY);
+
+    /**
+     * Version of this state, increasing with every change
+     */
+    private final long version;
+
+    /**
+     * Sorted handles of events with reminders
+     */
+    private final long[] handles;
+
+    /**
+     * Sorted handles of recurring events with reminders for all instances
+     */
+    private final long[] recurringHandles;
+
+    private ReminderState(long version, long[] handles, long[] recurringHandles) {
+        this.version = version;
+        this.handles = handles;
+        this.recurringHandles = recurringHandles;
+    }
+
+    /**
+     * Creates a new state
+     * @param version Version of the state
+     * @param events Events with reminders
+     * @param recurringIds Recurring event ids with reminders for all instances, may be null
+     * @return The new state
+     */
+    static ReminderState create(long version, Collection<Event> events,
+                                Collection<String> recurringIds) {
+        long[] handles = new long[events.size()];
+        int i = 0;
+        for (Event e : events) {
+            handles[i++] = e.getHandle();
+        }
+        Arrays.sort(handles);
+
+        long[] recurringHandles = new long[recurringIds == null ? 0 : recurringIds.size()];
+        if (recurringIds != null) {
+            i = 0;
+            for (String id : recurringIds) {
+                recurringHandles[i++] = Event.computeHandle(id);
+            }
+            Arrays.sort(recurringHandles);
+        }
+
+        return new ReminderState(version, handles, recurringHandles);
+    }
+
+    /**
+     * Gets the currently published state
+     * @return The current state, {@link #EMPTY} if none has been published
+     */
+    static ReminderState getCurrent() {
+        return current.get();
+    }
+
+    /**
+     * Publishes a new state
+     * @param state The new state
+     */
+    static void publish(ReminderState state) {
+        current.set(state);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Determines if there is a reminder for an event
+     * @param event The event to be checked
+     * @return true if a reminder is set, false else
+     */
+    public boolean contains(Event event) {
+        return Arrays.binarySearch(handles, event.getHandle()) >= 0;
+    }
+
+    /**
+     * Determines if there are reminders for all instances of a recurring event
+     * @param event An instance of the recurring event
+     * @return true if reminders are set for all instances, false else
+     */
+    public boolean containsRecurring(Event event) {
+        return event.isRecurring()
+                && Arrays.binarySearch(recurringHandles, event.getRecurringHandle()) >= 0;
+    }
+
+    /**
+     * Gets the number of events with reminders
+     * @return Number of reminders
+     */
+    public int size() {
+        return handles.length;
+    }
+}
@@ -1,43 +1,38 @@
 package de.mbdevelopment.android.rbtvsendeplan;
 
 import android.app.Activity;
+import android.app.FragmentManager;
 import android.content.BroadcastReceiver;
-import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.net.Uri;
-import android.os.Handler;
-import android.os.IBinder;
-import android.os.Message;
-import android.os.Messenger;
 import android.preference.PreferenceManager;
 import android.os.Bundle;
 import android.support.v4.content.LocalBroadcastManager;
-import android.util.SparseArray;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ExpandableListView;
+import android.widget.SearchView;
 import android.widget.Toast;
 
-import java.lang.ref.WeakReference;
+import java.text.DateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
-import java.util.Observable;
-import java.util.Observer;
+import java.util.TimeZone;
 
 /**
  * Main activity containing the schedule.
  */
 public class ScheduleActivity extends Activity implements ExpandableListView.OnChildClickListener,
-        AdapterView.OnItemLongClickListener, ExpandableEventListAdapter.ReminderCallbacks,
-        AddReminderDialogFragment.SelectionListener, DeleteReminderDialogFragment.SelectionListener,
-        Observer {
+        AdapterView.OnItemLongClickListener, AddReminderDialogFragment.SelectionListener,
+        DeleteReminderDialogFragment.SelectionListener {
 
     /**
      * Intent key for the messenger extra
@@ -54,87 +49,54 @@ public class ScheduleActivity extends Activity implements ExpandableListView.OnC
      */
     private ExpandableListView listView;
 
-    /**
-     * Reference to the reminder service
-     */
-    private ReminderService reminderService = null;
-
-    /**
-     * Buffers reminder toggle events until the service has been bound
-     */
-    private final List<Event> reminderToggleBuffer = new ArrayList<>();
-
-    /**
-     * Handler used to communicate with the reminder service
-     */
-    private Handler messageHandler;
-
     /**
      * Preferences
      */
     private SharedPreferences preferences;
 
     /**
-     * Flag used to signal changed calendar data
+     * Retained controller owning the service connection and the displayed data
      */
-    private boolean dataChanged = false;
+    private ScheduleController controller;
 
     /**
-     * Data source
+     * Hits of the current search query
      */
-    private DataHolder dataHolder;
+    private List<SearchIndex.Hit> searchHits = Collections.emptyList();
 
     /**
-     * Broadcast receiver for status messages from services
+     * Index of the search hit shown last
      */
-    private BroadcastReceiver broadcastReceiver;
+    private int searchCursor = -1;
 
     /**
-     * Connection to the reminder service
+     * Loads the schedule through the data service if the preload has found no local copy
      */
-    private class ReminderConnection implements ServiceConnection {
-
+    private final SchedulePreloader.Callback preloadCallback = new SchedulePreloader.Callback() {
         @Override
-        public void onServiceConnected(ComponentName name, IBinder service) {
-            ReminderService.ServiceBinder binder = (ReminderService.ServiceBinder) service;
-            reminderService = binder.getReminderService();
-            onBind();
-        }
-
-        @Override
-        public void onServiceDisconnected(ComponentName name) {
-            reminderService = null;
+        public void onPreloadFinished(boolean found) {
+            if (found) {
+                // Only keep the periodic refresh scheduled, the data is already there
+                Intent dataIntent = new Intent(getApplicationContext(), DataService.class);
+                dataIntent.setAction(DataService.ACTION_UPDATE_PREFERENCES);
+                startService(dataIntent);
+            } else {
+                loadCalendarData(false);
+            }
         }
-    }
+    };
 
     /**
-     * Message handler class used to communicate with the reminder service
+     * Broadcast receiver for status messages from services
      */
-    private static class MessageHandler extends Handler {
-        private final WeakReference<ScheduleActivity> mTarget;
-
-        public MessageHandler (ScheduleActivity target) {
-            mTarget = new WeakReference<>(target);
-        }
-
-        @Override
-        public void handleMessage(Message msg) {
-            ScheduleActivity target = mTarget.get();
-            if (target != null && msg.arg1 == ReminderService.FLAG_DATA_CHANGED) {
-                target.updateListView();
-                OneDayScheduleWidgetProvider.notifyWidgets(target.getApplicationContext());
-            }
-        }
-    }
+    private BroadcastReceiver broadcastReceiver;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        StartupTrace.mark(StartupTrace.Phase.ACTIVITY_CREATED);
         setContentView(R.layout.activity_schedule);
 
-        // Set up handler for this instance
-        messageHandler = new MessageHandler(this);
-
         // Get Preferences
         preferences = PreferenceManager.getDefaultSharedPreferences(this);
 
@@ -174,26 +136,33 @@ public class ScheduleActivity extends Activity implements ExpandableListView.OnC
             }
         };
 
-        // Data source
-        dataHolder = DataHolder.getInstance();
-        // Observe data source
-        dataHolder.addObserver(this);
+        // The controller survives configuration changes, only the list view is attached anew
+        FragmentManager fragmentManager = getFragmentManager();
+        controller = (ScheduleController) fragmentManager.findFragmentByTag(ScheduleController.TAG);
+        if (controller == null) {
+            controller = new ScheduleController();
+            fragmentManager.beginTransaction().add(controller, ScheduleController.TAG).commit();
+        }
 
         if (!preferences.getBoolean(getString(R.string.pref_version_upgraded), false)) {
             // Version update
             loadCalendarData(true);
-        } else if (dataHolder.getEventGroups() == null) {
-            // Check for cached data
-            loadCalendarData(false);
-        } else {
-            // Do not notify
-            onDataLoaded(dataHolder.getEventGroups());
+        } else if (DataHolder.getInstance().getEventGroups() == null) {
+            // Attach to the preload started with the process instead of loading the local copy
+            // again
+            SchedulePreloader.getInstance().attach(preloadCallback);
         }
+
+        listView = (ExpandableListView) findViewById(R.id.listView);
+        listView.setOnChildClickListener(this);
+        listView.setOnItemLongClickListener(this);
+        controller.attachListView(listView);
     }
 
     @Override
     protected void onDestroy() {
-        dataHolder.deleteObserver(this);
+        SchedulePreloader.getInstance().detach(preloadCallback);
+        controller.detachListView();
         super.onDestroy();
     }
 
@@ -209,18 +178,9 @@ public class ScheduleActivity extends Activity implements ExpandableListView.OnC
         LocalBroadcastManager.getInstance(this).registerReceiver(broadcastReceiver, actionFilter);
 
         // Check if loading indicator is still needed and hide otherwise
-        if (!preferences.getBoolean(getString(R.string.pref_is_loading), false)) {
+        if (!DataService.isLoading()) {
             findViewById(R.id.download_indicator).setVisibility(View.GONE);
         }
-
-        // Start service to run autonomously and pass a messenger to receive messages from it
-        Intent serviceIntent = new Intent(this, ReminderService.class);
-        serviceIntent.putExtra(EXTRA_MESSENGER, new Messenger(messageHandler));
-        getApplicationContext().startService(serviceIntent);
-
-        // Bin to the service to use the IBinder interface
-        Intent bindIntent = new Intent(this, ReminderService.class);
-        getApplicationContext().bindService(bindIntent, new ReminderConnection(), BIND_AUTO_CREATE);
     }
 
     @Override
@@ -229,53 +189,110 @@ public class ScheduleActivity extends Activity implements ExpandableListView.OnC
         super.onStop();
     }
 
-    /**
-     * Updates activity components with new data
-     * @param eventGroups The data that has been loaded
-     */
-    private void onDataLoaded(final SparseArray<EventGroup> eventGroups)
-    {
-        runOnUiThread(new Runnable() {
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        // Inflate the menu; this adds items to the action bar if it is present.
+        getMenuInflater().inflate(R.menu.menu_schedule, menu);
+
+        MenuItem searchItem = menu.findItem(R.id.action_search);
+        SearchView searchView = (SearchView) searchItem.getActionView();
+        searchView.setQueryHint(getString(R.string.search_hint));
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
             @Override
-            public void run() {
-                // ListView initialization
-                if (listView == null) {
-                    listView = (ExpandableListView) findViewById(R.id.listView);
-                }
+            public boolean onQueryTextSubmit(String query) {
+                showNextSearchHit();
+                return true;
+            }
 
-                listView.setAdapter(
-                        new ExpandableEventListAdapter(ScheduleActivity.this, eventGroups));
-
-                // Try to set the view to the expanded group containing events on the current day
-                int[] p = ((ExpandableEventListAdapter) listView.getExpandableListAdapter())
-                        .findCurrentEvent();
-                if (p[0] != -1) {
-                    listView.expandGroup(p[0]);
-                    if (p[1] != -1) {
-                        listView.setSelectedChild(p[0], p[1], true);
-                    } else {
-                        listView.setSelection(p[0]);
+            @Override
+            public boolean onQueryTextChange(String query) {
+                search(query);
+                return true;
+            }
+        });
+        searchItem.setOnActionExpandListener(new MenuItem.OnActionExpandListener() {
+            @Override
+            public boolean onMenuItemActionExpand(MenuItem item) {
+                // Archived days are only needed while searching
+                final Context context = getApplicationContext();
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        SearchIndex.getInstance().loadArchive(context);
                     }
-                }
-
-                listView.setOnChildClickListener(ScheduleActivity.this);
-                listView.setOnItemLongClickListener(ScheduleActivity.this);
+                }).start();
+                return true;
+            }
 
-                // Update reminder service data
-                if (reminderService == null) {
-                    dataChanged = true;
-                } else {
-                    reminderService.updateReminderDates(dataHolder.getEventGroups());
-                }
+            @Override
+            public boolean onMenuItemActionCollapse(MenuItem item) {
+                searchHits = Collections.emptyList();
+                searchCursor = -1;
+                return true;
             }
         });
+        return true;
     }
 
-    @Override
-    public boolean onCreateOptionsMenu(Menu menu) {
-        // Inflate the menu; this adds items to the action bar if it is present.
-        getMenuInflater().inflate(R.menu.menu_schedule, menu);
-        return true;
+    /**
+     * Looks up a search query and jumps to the first hit that is not in the past
+     * @param query The current query
+     */
+    private void search(String query) {
+        searchHits = SearchIndex.getInstance().search(query);
+        searchCursor = -1;
+        long today = Utils.toEpochDay(Calendar.getInstance());
+        for (int i = 0; i < searchHits.size() && !searchHits.get(i).archived; i++) {
+            if (searchHits.get(i).day >= today) {
+                searchCursor = i;
+                break;
+            }
+        }
+        if (searchCursor == -1 && !searchHits.isEmpty() && !searchHits.get(0).archived) {
+            // All scheduled hits are in the past
+            searchCursor = 0;
+        }
+        if (searchCursor != -1) showSearchHit(searchHits.get(searchCursor));
+    }
+
+    /**
+     * Jumps to the next hit of the current search in the schedule. If the schedule contains no
+     * hit, the date of the most recent archived hit is shown instead.
+     */
+    private void showNextSearchHit() {
+        if (searchHits.isEmpty()) {
+            Toast.makeText(this, getString(R.string.search_no_results), Toast.LENGTH_SHORT)
+                    .show();
+        } else if (searchHits.get(0).archived) {
+            // Archived days are identified by their UTC date
+            DateFormat format = DateFormat.getDateInstance(DateFormat.MEDIUM);
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            String date = format.format(new Date(searchHits.get(0).day * 24 * 60 * 60 * 1000L));
+            Toast.makeText(this, String.format(getString(R.string.search_archived_hit), date),
+                    Toast.LENGTH_LONG).show();
+        } else {
+            searchCursor++;
+            if (searchCursor >= searchHits.size() || searchHits.get(searchCursor).archived) {
+                searchCursor = 0;
+            }
+            showSearchHit(searchHits.get(searchCursor));
+        }
+    }
+
+    /**
+     * Expands the day of a search hit and scrolls to its event
+     * @param hit Hit in the current schedule
+     */
+    private void showSearchHit(SearchIndex.Hit hit) {
+        ExpandableEventListAdapter adapter = controller.getAdapter();
+        if (adapter == null) return;
+        int groupPosition = adapter.findGroup(hit.day);
+        // The index may already refer to a newer version than the one shown
+        if (groupPosition == -1 || hit.position >= adapter.getChildrenCount(groupPosition)) {
+            return;
+        }
+        listView.expandGroup(groupPosition);
+        listView.setSelectedChild(groupPosition, hit.position, true);
     }
 
     @Override
@@ -289,6 +306,9 @@ public class ScheduleActivity extends Activity implements ExpandableListView.OnC
             case R.id.action_reload:
                 loadCalendarData(true);
                 break;
+            case R.id.action_week:
+                startActivity(new Intent(this, WeekTimelineActivity.class));
+                break;
             case R.id.action_settings:
                 Intent intent = new Intent(this, SettingsActivity.class);
                 startActivity(intent);
@@ -315,8 +335,8 @@ public class ScheduleActivity extends Activity implements ExpandableListView.OnC
     @Override
     public boolean onChildClick(ExpandableListView parent, View v, int groupPosition,
                                 int childPosition, long id) {
-        Event event = dataHolder.getEventGroups().get(groupPosition).getEvents()
-                .get(childPosition);
+        // Positions refer to the displayed version of the schedule
+        Event event = (Event) controller.getAdapter().getChild(groupPosition, childPosition);
         if (event.isCurrentlyRunning()) {
             openTwitchChannel();
             return true;
@@ -349,16 +369,12 @@ public class ScheduleActivity extends Activity implements ExpandableListView.OnC
                 ExpandableListView.PACKED_POSITION_TYPE_CHILD) {
             int groupPosition = ExpandableListView.getPackedPositionGroup(packedPosition);
             int childPosition = ExpandableListView.getPackedPositionChild(packedPosition);
-            Event event = dataHolder.getEventGroups().get(groupPosition).getEvents()
-                    .get(childPosition);
+            Event event = (Event) controller.getAdapter().getChild(groupPosition, childPosition);
             // The currently running event is selectable, so it has to be filtered here as well as
             // reminders that would be before the current time
-            int offsetMinutes = Integer.parseInt(preferences.getString(
-                    getString(R.string.pref_reminder_offset_key),
-                    getString(R.string.pref_reminder_offset_default)));
             Calendar now = Calendar.getInstance();
             Calendar startOffset = (Calendar) event.getStartDate().clone();
-            startOffset.add(Calendar.MINUTE, -1 * offsetMinutes);
+            startOffset.add(Calendar.MILLISECOND, -1 * Settings.getInstance().get().reminderOffset);
             if(!event.isCurrentlyRunning()) {
                 if (startOffset.compareTo(now) == 1) {
                     toggleReminderState(event);
@@ -379,13 +395,16 @@ public class ScheduleActivity extends Activity implements ExpandableListView.OnC
      * @param event The event to get it's state toggled
      */
     private void toggleReminderState(final Event event) {
+        ReminderService reminderService = controller.getReminderService();
+        ReminderService.Callback reminderChangedCallback = controller.getReminderChangedCallback();
+
         // Service has not yet been bound
         if (reminderService == null) {
             // Schedule only single time events to be toggled, because they do not need a dialog to
             // be shown. Recurring events are simply ignored and the user has to retry when the
             // service is bound. This situation should almost never occur in the real world so we
             // will the allow this slight hit on the usability.
-            if (!event.isRecurring()) reminderToggleBuffer.add(event);
+            if (!event.isRecurring()) controller.bufferToggle(event);
             return;
         }
 
@@ -404,9 +423,7 @@ public class ScheduleActivity extends Activity implements ExpandableListView.OnC
                 dialogFragment.show(getFragmentManager(), DeleteReminderDialogFragment.TAG);
             } else if (reminderService.hasReminder(event)) {
                 // Toggle only this instance
-                reminderService.toggleState(event);
-                updateListView();
-                OneDayScheduleWidgetProvider.notifyWidgets(getApplicationContext());
+                reminderService.toggleState(event, reminderChangedCallback);
             } else {
                 AddReminderDialogFragment dialogFragment = new AddReminderDialogFragment();
                 Bundle args = new Bundle();
@@ -416,91 +433,43 @@ public class ScheduleActivity extends Activity implements ExpandableListView.OnC
             }
         } else {
             // Single time events can be toggled directly
-            reminderService.toggleState(event);
-            updateListView();
-            OneDayScheduleWidgetProvider.notifyWidgets(getApplicationContext());
+            reminderService.toggleState(event, reminderChangedCallback);
         }
     }
 
     @Override
     public void onSingleSelected(Event event) {
-        reminderService.toggleState(event);
-
-        updateListView();
-        OneDayScheduleWidgetProvider.notifyWidgets(getApplicationContext());
+        controller.getReminderService().toggleState(event,
+                controller.getReminderChangedCallback());
     }
 
     @Override
     public void onAllSelected(Event event) {
-        // Compile list of all available events
-        SerializableSparseArray<EventGroup> groupList = dataHolder.getEventGroups();
+        // Compile list of all available events. While only the prerendered or a partial schedule
+        // is shown, the remaining instances are added once the complete schedule is reconciled.
+        SerializableSparseArray<EventGroup> groupList = DataHolder.getInstance().getEventGroups();
         List<Event> eventList = new ArrayList<>();
-        for (int i = 0; i < groupList.size(); i++) {
-            eventList.addAll(groupList.get(i).getEvents());
+        if (groupList == null) {
+            eventList.add(event);
+        } else {
+            for (int i = 0; i < groupList.size(); i++) {
+                eventList.addAll(groupList.valueAt(i).getEvents());
+            }
         }
 
         // Add reminders
-        reminderService.addRecurringReminder(event, eventList);
-
-        updateListView();
-        OneDayScheduleWidgetProvider.notifyWidgets(getApplicationContext());
+        controller.getReminderService().addRecurringReminder(event, eventList,
+                controller.getReminderChangedCallback());
     }
 
     @Override
     public void onDeletionConfirmed(Event event) {
-        reminderService.deleteRecurringReminder(event);
-
-        updateListView();
-        OneDayScheduleWidgetProvider.notifyWidgets(getApplicationContext());
+        controller.getReminderService().deleteRecurringReminder(event,
+                controller.getReminderChangedCallback());
     }
 
     @Override
     public void onDeletionCancelled() {
         // Do nothing...
     }
-
-    /**
-     * Is called after a service has been bound
-     */
-    private void onBind() {
-        // If there are buffered reminder state toggle events, handle them now
-        if (!reminderToggleBuffer.isEmpty()) {
-            for (Event e : reminderToggleBuffer) {
-                reminderService.toggleState(e);
-            }
-            // Update if data has changed
-            reminderService.updateReminderDates(dataHolder.getEventGroups());
-        } else if (dataChanged) {
-            reminderService.updateReminderDates(dataHolder.getEventGroups());
-            dataChanged = false;
-        }
-        updateListView();
-    }
-
-    @Override
-    public boolean hasReminder(Event event) {
-        if (reminderService != null) {
-            return reminderService.hasReminder(event);
-        } else {
-            dataChanged = true;
-        }
-        return false;
-    }
-
-    /**
-     * Updates the list view data to the current version
-     */
-    private void updateListView() {
-        if (listView != null) {
-            ((ExpandableEventListAdapter) listView.getExpandableListAdapter())
-                    .notifyDataSetInvalidated();
-        }
-    }
-
-    @Override
-    public void update(Observable observable, Object data) {
-        if (observable instanceof DataHolder) {
-            onDataLoaded(((DataHolder) observable).getEventGroups());
-        }
-    }
 }
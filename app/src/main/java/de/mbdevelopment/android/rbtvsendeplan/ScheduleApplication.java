@@ -0,0 +1,31 @@
+package de.mbdevelopment.android.rbtvsendeplan;
+
+import android.app.Application;
+import android.content.Intent;
+
+/**
+ * Application starting the schedule preload as soon as the process is created. It also parses
+ * the settings and passes refresh changes on to the {@link DataService}, which only runs while it
+ * has work to do.
+ */
+public class ScheduleApplication extends Application implements Settings.Listener {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        StartupTrace.start();
+        Settings.getInstance().init(this);
+        Settings.getInstance().addListener(this);
+        SchedulePreloader.getInstance().start(this);
+    }
+
+    @Override
+    public void onSettingsChanged(Settings.Change change, Settings.Snapshot settings) {
+        if (change == Settings.Change.REFRESH) {
+            // Let the service re-arm or cancel its refresh alarm
+            Intent dataIntent = new Intent(this, DataService.class);
+            dataIntent.setAction(DataService.ACTION_UPDATE_PREFERENCES);
+            startService(dataIntent);
+        }
+    }
+}
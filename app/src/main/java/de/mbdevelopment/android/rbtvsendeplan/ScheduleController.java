@@ -0,0 +1,438 @@
+package de.mbdevelopment.android.rbtvsendeplan;
+
+import android.app.Fragment;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.widget.ExpandableListView;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Observable;
+import java.util.Observer;
+
+/**
+ * Headless fragment that is retained across configuration changes of the
+ * {@link ScheduleActivity}. It owns everything that does not depend on a particular activity
+ * instance: the connection to the reminder service, the displayed render model and the list
+ * adapter. A recreated activity only attaches its new list view, whose expanded groups and scroll
+ * position are restored by the framework because the adapter is set synchronously.
+ */
+public class ScheduleController extends Fragment implements Observer, TransitionClock.Listener,
+        ExpandableEventListAdapter.ReminderCallbacks {
+
+    /**
+     * Tag of the retained fragment
+     */
+    public static final String TAG = "schedule_controller";
+
+    /**
+     * Application context used for the service connection, which outlives activity instances
+     */
+    private Context appContext;
+
+    /**
+     * Reference to the reminder service
+     */
+    private ReminderService reminderService = null;
+
+    /**
+     * Connection to the reminder service, bound once for the lifetime of this controller
+     */
+    private final ReminderConnection connection = new ReminderConnection();
+
+    /**
+     * Whether the reminder service has been bound
+     */
+    private boolean bound = false;
+
+    /**
+     * Buffers reminder toggle events until the service has been bound
+     */
+    private final List<Event> reminderToggleBuffer = new ArrayList<>();
+
+    /**
+     * Flag used to signal changed calendar data
+     */
+    private boolean dataChanged = false;
+
+    /**
+     * Version of the schedule currently shown in the list view
+     */
+    private ScheduleSnapshot displayedSnapshot;
+
+    /**
+     * Display data currently shown in the list view
+     */
+    private ScheduleRenderModel renderModel;
+
+    /**
+     * Adapter of the list view. Created once for the first model, new data is swapped in.
+     */
+    private ExpandableEventListAdapter adapter;
+
+    /**
+     * List view of the current activity instance or null while none is attached
+     */
+    private ExpandableListView listView;
+
+    /**
+     * Whether the list has been scrolled to the current event once
+     */
+    private boolean positioned = false;
+
+    /**
+     * Whether the shown display data is only a part of the schedule, i.e. the prerendered first
+     * screen or the current day that has been decoded first
+     */
+    private boolean preliminary = false;
+
+    /**
+     * Number of the latest display data build. Older builds are discarded when they finish.
+     */
+    private int renderRequest = 0;
+
+    /**
+     * Handler of the UI thread, independent of any activity instance
+     */
+    private final Handler uiHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Refreshes the list and widgets once the reminder service has applied a change
+     */
+    private final ReminderService.Callback reminderChangedCallback =
+            new ReminderService.Callback() {
+                @Override
+                public void onComplete() {
+                    updateListView();
+                    OneDayScheduleWidgetProvider.notifyWidgets(appContext);
+                }
+            };
+
+    /**
+     * Connection to the reminder service
+     */
+    private class ReminderConnection implements ServiceConnection {
+
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            ReminderService.ServiceBinder binder = (ReminderService.ServiceBinder) service;
+            reminderService = binder.getReminderService();
+            onBind();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            reminderService = null;
+        }
+    }
+
+    /**
+     * Message handler class used to communicate with the reminder service
+     */
+    private static class MessageHandler extends Handler {
+        private final WeakReference<ScheduleController> mTarget;
+
+        public MessageHandler(ScheduleController target) {
+            mTarget = new WeakReference<>(target);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            ScheduleController target = mTarget.get();
+            if (target != null && msg.arg1 == ReminderService.FLAG_DATA_CHANGED) {
+                target.updateListView();
+                OneDayScheduleWidgetProvider.notifyWidgets(target.appContext);
+            }
+        }
+    }
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setRetainInstance(true);
+        appContext = getActivity().getApplicationContext();
+
+        // Start service to run autonomously and pass a messenger to receive messages from it
+        Intent serviceIntent = new Intent(appContext, ReminderService.class);
+        serviceIntent.putExtra(ScheduleActivity.EXTRA_MESSENGER,
+                new Messenger(new MessageHandler(this)));
+        appContext.startService(serviceIntent);
+
+        // Bind to the service to use the IBinder interface
+        Intent bindIntent = new Intent(appContext, ReminderService.class);
+        bound = appContext.bindService(bindIntent, connection, Context.BIND_AUTO_CREATE);
+
+        DataHolder dataHolder = DataHolder.getInstance();
+        dataHolder.addObserver(this);
+        if (dataHolder.getSnapshot() == null) {
+            // Show the first screen until the schedule has been loaded
+            showFirstScreen();
+        }
+        onDataLoaded(dataHolder.getSnapshot());
+    }
+
+    @Override
+    public void onStart() {
+        super.onStart();
+        // Events might have started or ended while the activity was stopped
+        updateListView();
+        TransitionClock.getInstance().addListener(this);
+    }
+
+    @Override
+    public void onStop() {
+        TransitionClock.getInstance().removeListener(this);
+        super.onStop();
+    }
+
+    @Override
+    public void onDestroy() {
+        // Only called when the activity is finally finished, not on configuration changes
+        DataHolder.getInstance().deleteObserver(this);
+        if (bound) {
+            appContext.unbindService(connection);
+            bound = false;
+        }
+        reminderService = null;
+        // Discard builds that are still running
+        renderRequest++;
+        super.onDestroy();
+    }
+
+    /**
+     * Attaches the list view of a new activity instance. The adapter is set immediately if the
+     * schedule has already been shown, so the list state saved by the framework can be restored.
+     * @param listView The list view
+     */
+    void attachListView(ExpandableListView listView) {
+        this.listView = listView;
+        if (adapter != null) {
+            listView.setAdapter(adapter);
+            if (!positioned) showCurrentEvent();
+        }
+    }
+
+    /**
+     * Detaches the list view of an activity instance that is being destroyed
+     */
+    void detachListView() {
+        listView = null;
+    }
+
+    /**
+     * Gets the adapter of the list view
+     * @return The adapter or null if no schedule has been shown yet
+     */
+    ExpandableEventListAdapter getAdapter() {
+        return adapter;
+    }
+
+    /**
+     * Gets the reminder service
+     * @return The service or null if it has not been bound yet
+     */
+    ReminderService getReminderService() {
+        return reminderService;
+    }
+
+    /**
+     * Gets the callback refreshing the list once the reminder service has applied a change
+     * @return The callback
+     */
+    ReminderService.Callback getReminderChangedCallback() {
+        return reminderChangedCallback;
+    }
+
+    /**
+     * Buffers a reminder toggle until the service has been bound
+     * @param event The event to get it's state toggled
+     */
+    void bufferToggle(Event event) {
+        reminderToggleBuffer.add(event);
+    }
+
+    /**
+     * Updates the list with new data
+     * @param snapshot The data that has been loaded
+     */
+    private void onDataLoaded(final ScheduleSnapshot snapshot) {
+        if (snapshot == null) return;
+        uiHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                // Skip rebuilding the list if this version is already shown
+                if (snapshot.isSameVersion(displayedSnapshot) && adapter != null) {
+                    return;
+                }
+                displayedSnapshot = snapshot;
+                buildRenderModel(snapshot);
+            }
+        });
+    }
+
+    /**
+     * Precomputes the display data of a schedule on a background thread and shows it once it has
+     * been built. Must be called on the UI thread.
+     * @param snapshot The schedule to be shown
+     */
+    private void buildRenderModel(final ScheduleSnapshot snapshot) {
+        final int request = ++renderRequest;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final ScheduleRenderModel model = ScheduleRenderModel.build(appContext,
+                        snapshot.getEventGroups(), System.currentTimeMillis());
+                uiHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // A newer build has been started in the meantime
+                        if (request != renderRequest) return;
+                        onRenderModelBuilt(snapshot, model);
+                    }
+                });
+            }
+        }).start();
+    }
+
+    /**
+     * Shows new display data in the list view
+     * @param snapshot The schedule the display data has been built from
+     * @param model The display data
+     */
+    private void onRenderModelBuilt(ScheduleSnapshot snapshot, ScheduleRenderModel model) {
+        StartupTrace.mark(StartupTrace.Phase.MODEL_BUILT);
+        showModel(model, !snapshot.isComplete());
+
+        // Update reminder service data
+        if (reminderService == null) {
+            dataChanged = true;
+        } else {
+            reminderService.updateReminderDates(snapshot, null);
+        }
+    }
+
+    /**
+     * Shows the prerendered first screen, which is read synchronously so it is shown with the
+     * first frame
+     */
+    private void showFirstScreen() {
+        List<FirstScreenFile.Day> days = FirstScreenFile.read(appContext);
+        if (days == null) return;
+        showModel(ScheduleRenderModel.buildPrerendered(appContext, days,
+                System.currentTimeMillis()), true);
+        StartupTrace.mark(StartupTrace.Phase.FIRST_SCREEN);
+    }
+
+    /**
+     * Shows display data in the list view
+     * @param model The display data
+     * @param preliminary Set if the display data is only a part of the schedule
+     */
+    private void showModel(ScheduleRenderModel model, boolean preliminary) {
+        if (adapter == null) {
+            adapter = new ExpandableEventListAdapter(appContext, model, this);
+            if (listView != null) listView.setAdapter(adapter);
+        } else {
+            // Keep scroll position and expanded groups, only rebind what has changed
+            adapter.setModel(model, listView);
+            // Days have been added before the shown ones, so the position has to be restored
+            if (this.preliminary) positioned = false;
+        }
+        this.preliminary = preliminary;
+        renderModel = model;
+        TransitionClock.getInstance().setModel(model);
+        if (listView != null && !positioned) showCurrentEvent();
+    }
+
+    /**
+     * Expands the group containing events on the current day and scrolls to the current event
+     */
+    private void showCurrentEvent() {
+        positioned = true;
+        int[] p = adapter.findCurrentEvent();
+        if (p[0] != -1) {
+            listView.expandGroup(p[0]);
+            if (p[1] != -1) {
+                listView.setSelectedChild(p[0], p[1], true);
+            } else {
+                listView.setSelection(p[0]);
+            }
+        }
+    }
+
+    /**
+     * Is called after the service has been bound
+     */
+    private void onBind() {
+        // If there are buffered reminder state toggle events, handle them now
+        if (!reminderToggleBuffer.isEmpty()) {
+            // Apply all buffered toggles at once
+            ReminderService.Transaction transaction = reminderService.beginTransaction();
+            for (Event e : reminderToggleBuffer) {
+                transaction.toggle(e);
+            }
+            transaction.commit(null);
+            reminderToggleBuffer.clear();
+            // Update if data has changed
+            reminderService.updateReminderDates(DataHolder.getInstance().getSnapshot(),
+                    reminderChangedCallback);
+        } else if (dataChanged) {
+            reminderService.updateReminderDates(DataHolder.getInstance().getSnapshot(),
+                    reminderChangedCallback);
+            dataChanged = false;
+        }
+        updateListView();
+    }
+
+    @Override
+    public boolean hasReminder(Event event) {
+        if (reminderService != null) {
+            return ReminderState.getCurrent().contains(event);
+        } else {
+            dataChanged = true;
+        }
+        return false;
+    }
+
+    /**
+     * Updates the list view data to the current version
+     */
+    private void updateListView() {
+        if (adapter == null || listView == null) return;
+
+        // Running and over flags are outdated once an event has started or ended
+        long now = System.currentTimeMillis();
+        if (renderModel.isStale(now)) onTransition(now);
+
+        // Reminder icons might have changed
+        adapter.rebindChildren(listView, null);
+    }
+
+    @Override
+    public void onTransition(long now) {
+        if (adapter == null || listView == null) return;
+
+        // Only the rows whose running or over flag has changed are recreated and rebound
+        ScheduleRenderModel advanced = renderModel.advance(now);
+        if (advanced == renderModel) return;
+        renderModel = advanced;
+        adapter.setModel(advanced, listView);
+        TransitionClock.getInstance().setModel(advanced);
+    }
+
+    @Override
+    public void update(Observable observable, Object data) {
+        if (observable instanceof DataHolder) {
+            onDataLoaded(((DataHolder) observable).getSnapshot());
+        }
+    }
+}
@@ -0,0 +1,481 @@
+package de.mbdevelopment.android.rbtvsendeplan;
+
+import android.content.Context;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Calendar;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Reads and writes the local copy of the schedule. The file starts with a small header containing
+ * the generation and content hash of the stored {@link ScheduleSnapshot}, so consumers can check
+ * if the schedule has changed without reading the whole file. Files of older app versions without
+ * a header are still readable.
+ * <p>
+ * Every day of the schedule is stored in its own independently decodable segment. An index footer
+ * lists the day, offset and length of each segment, followed by the offset of the footer itself,
+ * so single days can be loaded without decoding the rest of the file.
+ */
+class ScheduleFile {
+
+    /**
+     * Filename for the local calendar copy
+     */
+    public static final String FILENAME = "calendar.local";
+
+    /**
+     * Marks files with a header
+     */
+    private static final int MAGIC = 0x52425456; // "RBTV"
+
+    /**
+     * Version of the file format with the whole schedule in a single object stream
+     */
+    private static final int FORMAT_VERSION_SINGLE = 1;
+
+    /**
+     * Version of the file format with one segment per day
+     */
+    private static final int FORMAT_VERSION_SEGMENTED = 2;
+
+    /**
+     * Size of the header in bytes
+     */
+    private static final int HEADER_SIZE = 24;
+
+    /**
+     * Size of the segment count and the index offset of the footer in bytes
+     */
+    private static final int FOOTER_FIXED_SIZE = 12;
+
+    /**
+     * Size of a single entry of the index footer in bytes
+     */
+    private static final int INDEX_ENTRY_SIZE = 20;
+
+    /**
+     * Serializes deriving a new generation from the stored one and writing it
+     */
+    static final Object PUBLISH_LOCK = new Object();
+
+    /**
+     * Header data of a schedule file
+     */
+    public static class Header {
+
+        /**
+         * Generation of the stored snapshot
+         */
+        public final long generation;
+
+        /**
+         * Content hash of the stored snapshot
+         */
+        public final long contentHash;
+
+        public Header(long generation, long contentHash) {
+            this.generation = generation;
+            this.contentHash = contentHash;
+        }
+    }
+
+    /**
+     * Raw segments of a segmented schedule file, read while holding the file lock and decoded
+     * after it has been released
+     */
+    private static class Segments {
+
+        /**
+         * Generation of the stored snapshot
+         */
+        final long generation;
+
+        /**
+         * Content hash of the stored snapshot
+         */
+        final long contentHash;
+
+        /**
+         * Epoch days of the segments
+         */
+        final long[] days;
+
+        /**
+         * Serialized event groups in the order of the days
+         */
+        final byte[][] data;
+
+        Segments(long generation, long contentHash, long[] days, byte[][] data) {
+            this.generation = generation;
+            this.contentHash = contentHash;
+            this.days = days;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Receives the current day of the schedule before the remaining days have been decoded
+     */
+    public interface PartialLoadListener {
+
+        /**
+         * Called once the segment of the current day has been decoded
+         * @param partial Incomplete snapshot containing only the current day
+         */
+        void onPartialLoad(ScheduleSnapshot partial);
+    }
+
+    // Static helper functions only
+    private ScheduleFile() {}
+
+    /**
+     * Reads only the header of the local schedule copy
+     * @param context Context used to access the internal storage
+     * @return The header or null if there is no file or it has no header
+     */
+    public static Header readHeader(Context context) {
+        Header header = null;
+        Lock lock = null;
+        try {
+            lock = FileLockHolder.getInstance().getReadLock(FILENAME);
+            lock.lock();
+            FileInputStream fi = context.openFileInput(FILENAME);
+            DataInputStream di = new DataInputStream(new BufferedInputStream(fi, HEADER_SIZE));
+            if (di.readInt() == MAGIC) {
+                int version = di.readInt();
+                if (version == FORMAT_VERSION_SINGLE || version == FORMAT_VERSION_SEGMENTED) {
+                    header = new Header(di.readLong(), di.readLong());
+                }
+            }
+            di.close();
+        } catch (FileNotFoundException e) {
+            // No backup in storage
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (lock != null) {
+                lock.unlock();
+            }
+        }
+
+        return header;
+    }
+
+    /**
+     * Reads the local schedule copy
+     * @param context Context used to access the internal storage
+     * @return The stored snapshot or null if there is none or it could not be read
+     */
+    public static ScheduleSnapshot read(Context context) {
+        return read(context, null);
+    }
+
+    /**
+     * Reads the local schedule copy. If the file is segmented, the current day is decoded first
+     * and passed to the listener before the remaining days are decoded. Segments are decoded and
+     * the listener is called after the file lock has been released, so writers are not blocked.
+     * @param context Context used to access the internal storage
+     * @param listener Listener for the current day, may be null
+     * @return The complete stored snapshot or null if there is none or it could not be read
+     */
+    public static ScheduleSnapshot read(Context context, PartialLoadListener listener) {
+        ScheduleSnapshot snapshot = null;
+        Segments segments = null;
+        Lock lock = null;
+        try {
+            lock = FileLockHolder.getInstance().getReadLock(FILENAME);
+            lock.lock();
+            RandomAccessFile raf = new RandomAccessFile(context.getFileStreamPath(FILENAME), "r");
+            try {
+                if (raf.length() >= HEADER_SIZE && raf.readInt() == MAGIC
+                        && raf.readInt() == FORMAT_VERSION_SEGMENTED) {
+                    segments = readSegments(raf);
+                }
+            } finally {
+                raf.close();
+            }
+            if (segments == null) snapshot = readSingle(context);
+        } catch (FileNotFoundException e) {
+            // No backup in storage
+        } catch (ClassNotFoundException | IOException | RuntimeException e) {
+            // Corrupt copies are treated as missing, the schedule is downloaded again
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (lock != null) {
+                lock.unlock();
+            }
+        }
+        if (segments == null) return snapshot;
+
+        try {
+            return decodeSegments(segments, listener);
+        } catch (ClassNotFoundException | IOException | RuntimeException e) {
+            // Corrupt copies are treated as missing, the schedule is downloaded again
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Reads the raw segments of a segmented schedule file. The file pointer must be positioned
+     * after the format version.
+     * @param raf The opened schedule file
+     * @return The segments
+     * @throws IOException if the file could not be read or its index is invalid
+     */
+    private static Segments readSegments(RandomAccessFile raf) throws IOException {
+        long generation = raf.readLong();
+        long contentHash = raf.readLong();
+
+        // Read the index footer. Its values are checked, so a truncated file fails as a whole.
+        long fileLength = raf.length();
+        if (fileLength < HEADER_SIZE + FOOTER_FIXED_SIZE) throw new IOException("Truncated file");
+        raf.seek(fileLength - 8);
+        long indexOffset = raf.readLong();
+        if (indexOffset < HEADER_SIZE || indexOffset > fileLength - FOOTER_FIXED_SIZE) {
+            throw new IOException("Invalid index offset");
+        }
+        raf.seek(indexOffset);
+        int count = raf.readInt();
+        long maxCount = (fileLength - FOOTER_FIXED_SIZE - indexOffset) / INDEX_ENTRY_SIZE;
+        if (count < 0 || count > maxCount) {
+            throw new IOException("Invalid segment count");
+        }
+        long[] days = new long[count];
+        long[] offsets = new long[count];
+        int[] lengths = new int[count];
+        for (int i = 0; i < count; i++) {
+            days[i] = raf.readLong();
+            offsets[i] = raf.readLong();
+            lengths[i] = raf.readInt();
+            if (offsets[i] < HEADER_SIZE || lengths[i] < 0
+                    || offsets[i] + lengths[i] > indexOffset) {
+                throw new IOException("Invalid segment " + i);
+            }
+        }
+
+        byte[][] data = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            data[i] = new byte[lengths[i]];
+            raf.seek(offsets[i]);
+            raf.readFully(data[i]);
+        }
+        return new Segments(generation, contentHash, days, data);
+    }
+
+    /**
+     * Decodes the segments of a schedule file. The current day is decoded first and passed to
+     * the listener.
+     * @param segments The raw segments
+     * @param listener Listener for the current day, may be null
+     * @return The complete snapshot
+     * @throws IOException if a segment is corrupt
+     * @throws ClassNotFoundException if a segment could not be deserialized
+     */
+    private static ScheduleSnapshot decodeSegments(Segments segments,
+                                                   PartialLoadListener listener)
+            throws IOException, ClassNotFoundException {
+        int count = segments.days.length;
+
+        // Decode and publish the current day first
+        EventGroup[] groups = new EventGroup[count];
+        if (listener != null && count > 0) {
+            int today = findDay(segments.days, Utils.toEpochDay(Calendar.getInstance()));
+            groups[today] = readSegment(segments.data[today]);
+            SerializableSparseArray<EventGroup> partial = new SerializableSparseArray<>();
+            partial.put(0, groups[today]);
+            listener.onPartialLoad(new ScheduleSnapshot(partial, segments.generation,
+                    segments.contentHash, false));
+        }
+
+        // Decode the remaining days
+        SerializableSparseArray<EventGroup> eventGroups = new SerializableSparseArray<>();
+        for (int i = 0; i < count; i++) {
+            if (groups[i] == null) {
+                groups[i] = readSegment(segments.data[i]);
+            }
+            eventGroups.put(i, groups[i]);
+        }
+
+        return new ScheduleSnapshot(eventGroups, segments.generation, segments.contentHash);
+    }
+
+    /**
+     * Finds the index of a day or the first day after it if it is not contained
+     * @param days Sorted list of days
+     * @param day The day to be searched
+     * @return Index of the day, the following day or the last day
+     */
+    private static int findDay(long[] days, long day) {
+        for (int i = 0; i < days.length; i++) {
+            if (days[i] >= day) return i;
+        }
+        return days.length - 1;
+    }
+
+    /**
+     * Decodes a single segment
+     * @param buffer The serialized segment
+     * @return The event group stored in the segment
+     * @throws IOException if the segment is corrupt
+     * @throws ClassNotFoundException if the segment could not be deserialized
+     */
+    private static EventGroup readSegment(byte[] buffer)
+            throws IOException, ClassNotFoundException {
+        ObjectInput oi = new ObjectInputStream(new ByteArrayInputStream(buffer));
+        EventGroup group = (EventGroup) oi.readObject();
+        oi.close();
+        return group;
+    }
+
+    /**
+     * Reads a schedule file of an older format storing the whole schedule in one object stream
+     * @param context Context used to access the internal storage
+     * @return The stored snapshot or null if the format is unknown
+     * @throws IOException if the file could not be read
+     * @throws ClassNotFoundException if the schedule could not be deserialized
+     */
+    @SuppressWarnings("unchecked") // Deserializing produces a compiler warning
+    private static ScheduleSnapshot readSingle(Context context)
+            throws IOException, ClassNotFoundException {
+        FileInputStream fi = context.openFileInput(FILENAME);
+        BufferedInputStream bi = new BufferedInputStream(fi);
+        DataInputStream di = new DataInputStream(bi);
+        bi.mark(8);
+        if (di.readInt() == MAGIC) {
+            if (di.readInt() != FORMAT_VERSION_SINGLE) {
+                // Unknown format, treat as missing
+                di.close();
+                return null;
+            }
+            long generation = di.readLong();
+            long contentHash = di.readLong();
+            ObjectInput oi = new ObjectInputStream(bi);
+            ScheduleSnapshot snapshot = new ScheduleSnapshot(
+                    (SerializableSparseArray<EventGroup>) oi.readObject(), generation,
+                    contentHash);
+            oi.close();
+            return snapshot;
+        }
+
+        // File of an older version without header
+        bi.reset();
+        ObjectInput oi = new ObjectInputStream(bi);
+        SerializableSparseArray<EventGroup> eventGroups =
+                (SerializableSparseArray<EventGroup>) oi.readObject();
+        oi.close();
+        return new ScheduleSnapshot(eventGroups, ScheduleSnapshot.NO_GENERATION,
+                ScheduleSnapshot.computeHash(eventGroups));
+    }
+
+    /**
+     * Rewrites a local copy of an older format without a generation once, so consumers can
+     * compare headers from now on
+     * @param context Context used to access the internal storage
+     * @param snapshot Snapshot read from the local copy, may be null
+     * @return The snapshot with its new generation or the unchanged snapshot
+     */
+    public static ScheduleSnapshot upgradeLegacy(Context context, ScheduleSnapshot snapshot) {
+        if (snapshot == null || snapshot.getGeneration() != ScheduleSnapshot.NO_GENERATION) {
+            return snapshot;
+        }
+        synchronized (PUBLISH_LOCK) {
+            Header header = readHeader(context);
+            if (header != null) {
+                // Rewritten in the meantime, the new copy is published by its writer
+                return header.contentHash == snapshot.getContentHash()
+                        ? new ScheduleSnapshot(snapshot.getEventGroups(), header.generation,
+                        header.contentHash) : snapshot;
+            }
+            ScheduleSnapshot upgraded = new ScheduleSnapshot(snapshot.getEventGroups(), 1,
+                    snapshot.getContentHash());
+            write(context, upgraded);
+            return upgraded;
+        }
+    }
+
+    /**
+     * Writes a snapshot as the local schedule copy. The file is written to a temporary file first
+     * and renamed, so a crash never leaves a partially written copy behind.
+     * @param context Context used to access the internal storage
+     * @param snapshot The snapshot to be written
+     */
+    public static void write(Context context, ScheduleSnapshot snapshot) {
+        SerializableSparseArray<EventGroup> eventGroups = snapshot.getEventGroups();
+        int count = eventGroups.size();
+        long[] days = new long[count];
+        byte[][] segments = new byte[count][];
+        try {
+            // Encode segments before taking the lock
+            for (int i = 0; i < count; i++) {
+                EventGroup group = eventGroups.valueAt(i);
+                days[i] = group.getDate() == null ? 0 : Utils.toEpochDay(group.getDate());
+                ByteArrayOutputStream bo = new ByteArrayOutputStream();
+                ObjectOutput oo = new ObjectOutputStream(bo);
+                oo.writeObject(group);
+                oo.close();
+                segments[i] = bo.toByteArray();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        Lock lock = null;
+        try {
+            lock = FileLockHolder.getInstance().getWriteLock(FILENAME);
+            lock.lock();
+            File tmp = context.getFileStreamPath(FILENAME + ".tmp");
+            FileOutputStream fo = new FileOutputStream(tmp);
+            DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(fo));
+            dout.writeInt(MAGIC);
+            dout.writeInt(FORMAT_VERSION_SEGMENTED);
+            dout.writeLong(snapshot.getGeneration());
+            dout.writeLong(snapshot.getContentHash());
+
+            // Segments
+            long offset = HEADER_SIZE;
+            long[] offsets = new long[count];
+            for (int i = 0; i < count; i++) {
+                offsets[i] = offset;
+                dout.write(segments[i]);
+                offset += segments[i].length;
+            }
+
+            // Index footer
+            dout.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                dout.writeLong(days[i]);
+                dout.writeLong(offsets[i]);
+                dout.writeInt(segments[i].length);
+            }
+            dout.writeLong(offset);
+            dout.close();
+            if (!tmp.renameTo(context.getFileStreamPath(FILENAME))) {
+                throw new IOException("Could not replace " + FILENAME);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (lock != null) {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package de.mbdevelopment.android.rbtvsendeplan;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.preference.PreferenceManager;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes the local schedule copy on a background thread as soon as the process starts, so the
+ * schedule is usually available before the first activity needs it. Activities attach to the
+ * load while it is in flight instead of starting another one.
+ */
+class SchedulePreloader {
+
+    /**
+     * Receives the result of the preload
+     */
+    interface Callback {
+
+        /**
+         * Called on the main thread once the preload has finished
+         * @param found true if a local copy has been published, false if there is none
+         */
+        void onPreloadFinished(boolean found);
+    }
+
+    /**
+     * Handler of the main thread
+     */
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Callbacks waiting for the preload to finish
+     */
+    private final List<Callback> callbacks = new ArrayList<>();
+
+    /**
+     * Whether the preload has been started
+     */
+    private boolean started = false;
+
+    /**
+     * Whether the preload has finished
+     */
+    private boolean finished = false;
+
+    /**
+     * Whether a local copy has been found
+     */
+    private boolean found = false;
+
+    // Private constructor. Prevents instantiation from other classes.
+    private SchedulePreloader() {}
+
+    /**
+     * Implements Bill Pugh's version of the singleton pattern instantiation
+     */
+    private static class InstanceHolder {
+        private static final SchedulePreloader INSTANCE = new SchedulePreloader();
+    }
+
+    /**
+     * Gets the singleton SchedulePreloader
+     * @return The singleton instance
+     */
+    public static SchedulePreloader getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    /**
+     * Starts decoding the local copy unless this has been done before. Nothing is loaded while a
+     * version upgrade is pending, because the local copy is replaced in that case anyway.
+     * @param context Context used to access the internal storage
+     */
+    synchronized void start(Context context) {
+        if (started) return;
+        started = true;
+        final Context appContext = context.getApplicationContext();
+        if (!PreferenceManager.getDefaultSharedPreferences(appContext)
+                .getBoolean(appContext.getString(R.string.pref_version_upgraded), false)) {
+            finished = true;
+            return;
+        }
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // Publish the current day as soon as it has been decoded
+                ScheduleSnapshot snapshot = ScheduleFile.read(appContext,
+                        new ScheduleFile.PartialLoadListener() {
+                            @Override
+                            public void onPartialLoad(ScheduleSnapshot partial) {
+                                StartupTrace.mark(StartupTrace.Phase.PRELOAD_FIRST_DAY);
+                                DataHolder.getInstance().updateSnapshot(partial);
+                            }
+                        });
+                snapshot = ScheduleFile.upgradeLegacy(appContext, snapshot);
+                if (snapshot != null) {
+                    DataHolder.getInstance().updateSnapshot(snapshot);
+                }
+                StartupTrace.mark(StartupTrace.Phase.PRELOAD_COMPLETE);
+                onFinished(snapshot != null);
+                // Keep the first screen of the next start current if no sync runs until then
+                FirstScreenFile.update(appContext, snapshot);
+                // Days that have passed since the copy has been written are archived now
+                HistoryArchive.archive(appContext, snapshot);
+            }
+        }).start();
+    }
+
+    /**
+     * Attaches to the preload. The callback is called immediately if the preload has already
+     * finished or has never been started.
+     * @param callback Callback to be called on the main thread
+     */
+    synchronized void attach(final Callback callback) {
+        if (!started || finished) {
+            final boolean result = found;
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onPreloadFinished(result);
+                }
+            });
+        } else {
+            callbacks.add(callback);
+        }
+    }
+
+    /**
+     * Detaches a callback that is no longer interested in the result
+     * @param callback The callback passed to {@link #attach(Callback)}
+     */
+    synchronized void detach(Callback callback) {
+        callbacks.remove(callback);
+    }
+
+    /**
+     * Notifies all attached callbacks of the result
+     * @param result true if a local copy has been published
+     */
+    private synchronized void onFinished(final boolean result) {
+        finished = true;
+        found = result;
+        final Callback[] pending = callbacks.toArray(new Callback[callbacks.size()]);
+        callbacks.clear();
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Callback callback : pending) {
+                    callback.onPreloadFinished(result);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,509 @@
+package de.mbdevelopment.android.rbtvsendeplan;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Typeface;
+import android.graphics.drawable.Drawable;
+import android.graphics.drawable.StateListDrawable;
+import android.support.v4.content.res.ResourcesCompat;
+import android.text.SpannableString;
+import android.text.TextUtils;
+import android.text.format.DateUtils;
+import android.text.style.ForegroundColorSpan;
+import android.text.style.StyleSpan;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Display data of the schedule list, precomputed off the UI thread whenever the schedule changes.
+ * Binding a row only applies the cached values. Drawables are resolved once per model and shared
+ * by all rows through their {@link Drawable.ConstantState}s.
+ * <p>
+ * The running and over flags are only valid until the next start or end of an event. The model
+ * keeps a sorted index of these transitions, so a later version can be derived with
+ * {@link #advance(long)} by recreating only the rows whose flags have changed.
+ */
+class ScheduleRenderModel {
+
+    /**
+     * Display data of a single event row
+     */
+    static class Row {
+
+        /**
+         * The event shown in this row
+         */
+        final Event event;
+
+        /**
+         * Formatted start time
+         */
+        final String time;
+
+        /**
+         * Title including the running indicator if the event is running
+         */
+        final CharSequence title;
+
+        /**
+         * Set if the event was running when the model was built
+         */
+        final boolean running;
+
+        /**
+         * Set if the event was over when the model was built
+         */
+        final boolean over;
+
+        /**
+         * Shared state of the background drawable
+         */
+        final Drawable.ConstantState background;
+
+        /**
+         * Shared state of the type icon
+         */
+        final Drawable.ConstantState typeIcon;
+
+        private Row(Event event, String time, CharSequence title, boolean running, boolean over,
+                    Drawable.ConstantState background, Drawable.ConstantState typeIcon) {
+            this.event = event;
+            this.time = time;
+            this.title = title;
+            this.running = running;
+            this.over = over;
+            this.background = background;
+            this.typeIcon = typeIcon;
+        }
+
+        /**
+         * Gets the stable id of the row
+         * @return Handle of the event
+         */
+        long getId() {
+            return event.getHandle();
+        }
+
+        /**
+         * Checks if a row of an older model displays the same data
+         * @param other Row of the same event in an older model
+         * @return true if the row does not have to be rebound, false else
+         */
+        boolean isSameContent(Row other) {
+            return running == other.running && over == other.over && time.equals(other.time)
+                    && event.getType() == other.event.getType()
+                    && TextUtils.equals(event.getTitle(), other.event.getTitle());
+        }
+    }
+
+    /**
+     * Display data of a single day
+     */
+    static class Group {
+
+        /**
+         * The day shown in this group
+         */
+        final EventGroup eventGroup;
+
+        /**
+         * Formatted date
+         */
+        final String date;
+
+        /**
+         * Rows of all events of the day
+         */
+        final List<Row> rows;
+
+        /**
+         * Stable id of the group
+         */
+        final long id;
+
+        private Group(EventGroup eventGroup, String date, List<Row> rows, long id) {
+            this.eventGroup = eventGroup;
+            this.date = date;
+            this.rows = rows;
+            this.id = id;
+        }
+    }
+
+    /**
+     * Creates rows with drawables and texts shared by all rows of a model
+     */
+    private static class RowFactory {
+
+        private final Context context;
+        private final Drawable.ConstantState newIcon;
+        private final Drawable.ConstantState liveIcon;
+        private final Drawable.ConstantState rerunIcon;
+        private final Drawable.ConstantState newNow;
+        private final Drawable.ConstantState liveNow;
+        private final Drawable.ConstantState rerunNow;
+        private final Drawable.ConstantState newBackground;
+        private final Drawable.ConstantState liveBackground;
+        private final Drawable.ConstantState rerunBackground;
+        private final Drawable.ConstantState reminderOnIcon;
+        private final Drawable.ConstantState reminderAddIcon;
+        private final String runningText;
+        private final int runningColor;
+
+        RowFactory(Context context) {
+            this.context = context;
+            Resources resources = context.getResources();
+            newIcon = getState(resources, R.drawable.ic_new);
+            liveIcon = getState(resources, R.drawable.ic_live);
+            rerunIcon = getState(resources, R.drawable.ic_rerun);
+            newNow = getState(resources, R.drawable.new_now_background);
+            liveNow = getState(resources, R.drawable.live_now_background);
+            rerunNow = getState(resources, R.drawable.rerun_now_background);
+            newBackground = createStateList(resources,
+                    R.color.new_background_selected, R.color.new_background);
+            liveBackground = createStateList(resources,
+                    R.color.live_background_selected, R.color.live_background);
+            rerunBackground = createStateList(resources,
+                    R.color.rerun_background_selected, R.color.rerun_background);
+            reminderOnIcon = getState(resources, R.drawable.ic_alarm_on_black_36dp);
+            reminderAddIcon = getState(resources, R.drawable.ic_alarm_add_grey600_36dp);
+            runningText = resources.getString(R.string.running_indicator);
+            runningColor = resources.getColor(R.color.running_indicator);
+        }
+
+        /**
+         * Creates the row of an event
+         * @param e The event
+         * @param time Formatted start time or null if it has to be formatted
+         * @param now Current time in milliseconds
+         * @return The new row
+         */
+        Row create(Event e, String time, long now) {
+            long start = e.getStartDate().getTimeInMillis();
+            long end = e.getEndDate().getTimeInMillis();
+            boolean running = isRunning(start, end, now);
+            boolean over = isOver(end, now);
+            if (time == null) {
+                time = DateUtils.formatDateTime(context, start, DateUtils.FORMAT_SHOW_TIME);
+            }
+
+            // Indicate the currently running show with a text
+            CharSequence title = e.getTitle();
+            if (running) {
+                SpannableString runningIndicator = new SpannableString(
+                        (title == null ? "" : title) + "   " + runningText);
+                int indicatorStart = runningIndicator.length() - runningText.length();
+                runningIndicator.setSpan(new ForegroundColorSpan(runningColor),
+                        indicatorStart, runningIndicator.length(),
+                        SpannableString.SPAN_EXCLUSIVE_EXCLUSIVE);
+                runningIndicator.setSpan(new StyleSpan(Typeface.BOLD), indicatorStart - 3,
+                        runningIndicator.length(), SpannableString.SPAN_EXCLUSIVE_EXCLUSIVE);
+                title = runningIndicator;
+            }
+
+            Drawable.ConstantState background;
+            Drawable.ConstantState typeIcon;
+            if (Event.Type.NEW.equals(e.getType())) {
+                background = running ? newNow : newBackground;
+                typeIcon = newIcon;
+            } else if (Event.Type.LIVE.equals(e.getType())) {
+                background = running ? liveNow : liveBackground;
+                typeIcon = liveIcon;
+            } else {
+                background = running ? rerunNow : rerunBackground;
+                typeIcon = rerunIcon;
+            }
+
+            return new Row(e, time, title, running, over, background, typeIcon);
+        }
+    }
+
+    /**
+     * Model without any groups
+     */
+    static final ScheduleRenderModel EMPTY =
+            new ScheduleRenderModel(Collections.<Group>emptyList(), null, new long[0], 0);
+
+    /**
+     * All groups in display order
+     */
+    private final List<Group> groups;
+
+    /**
+     * Creates rows whose state has changed
+     */
+    private final RowFactory factory;
+
+    /**
+     * Sorted instants in milliseconds at which an event starts or ends, so that its running or
+     * over flag changes
+     */
+    private final long[] transitions;
+
+    /**
+     * Time in milliseconds at which the next event starts or ends
+     */
+    private final long validUntil;
+
+    private ScheduleRenderModel(List<Group> groups, RowFactory factory, long[] transitions,
+                                long now) {
+        this.groups = groups;
+        this.factory = factory;
+        this.transitions = transitions;
+        this.validUntil = getNextTransition(now);
+    }
+
+    /**
+     * Builds the display data of a schedule. May be called on any thread.
+     * @param context Context used to resolve resources and format dates
+     * @param eventGroups The schedule
+     * @param now Current time in milliseconds
+     * @return The new model
+     */
+    static ScheduleRenderModel build(Context context, SparseArray<EventGroup> eventGroups,
+                                     long now) {
+        if (eventGroups == null) return EMPTY;
+        RowFactory factory = new RowFactory(context);
+
+        List<Long> instants = new ArrayList<>();
+        List<Group> groups = new ArrayList<>(eventGroups.size());
+        for (int i = 0; i < eventGroups.size(); i++) {
+            EventGroup eventGroup = eventGroups.valueAt(i);
+            List<Row> rows = new ArrayList<>(eventGroup.getEvents().size());
+            for (Event e : eventGroup.getEvents()) {
+                rows.add(factory.create(e, null, now));
+                // Flags are compared strictly, so they change one millisecond after the instant
+                instants.add(e.getStartDate().getTimeInMillis() + 1);
+                instants.add(e.getEndDate().getTimeInMillis() + 1);
+            }
+            // Groups are identified by their day, groups without a date by their position
+            long id = eventGroup.getDate() == null
+                    ? -1 - i : Utils.toEpochDay(eventGroup.getDate());
+            groups.add(new Group(eventGroup, formatGroupDate(context, eventGroup), rows, id));
+        }
+
+        return new ScheduleRenderModel(groups, factory, toTransitions(instants), now);
+    }
+
+    /**
+     * Builds the display data of the prerendered first screen, reusing its formatted texts
+     * @param context Context used to resolve resources
+     * @param days The prerendered days
+     * @param now Current time in milliseconds
+     * @return The new model
+     */
+    static ScheduleRenderModel buildPrerendered(Context context, List<FirstScreenFile.Day> days,
+                                                long now) {
+        RowFactory factory = new RowFactory(context);
+
+        List<Long> instants = new ArrayList<>();
+        List<Group> groups = new ArrayList<>(days.size());
+        for (FirstScreenFile.Day day : days) {
+            List<Event> events = day.eventGroup.getEvents();
+            List<Row> rows = new ArrayList<>(events.size());
+            for (int i = 0; i < events.size(); i++) {
+                Event e = events.get(i);
+                rows.add(factory.create(e, day.times[i], now));
+                instants.add(e.getStartDate().getTimeInMillis() + 1);
+                instants.add(e.getEndDate().getTimeInMillis() + 1);
+            }
+            // Same ids as the groups of the complete schedule
+            groups.add(new Group(day.eventGroup, day.date, rows,
+                    Utils.toEpochDay(day.eventGroup.getDate())));
+        }
+
+        return new ScheduleRenderModel(groups, factory, toTransitions(instants), now);
+    }
+
+    /**
+     * Creates a version of the model for a later time. Only the rows whose running or over flag
+     * has changed are recreated, all other rows are shared with this model.
+     * @param now Current time in milliseconds
+     * @return The advanced model or this model if no flag has changed
+     */
+    ScheduleRenderModel advance(long now) {
+        if (!isStale(now)) return this;
+        List<Group> advanced = new ArrayList<>(groups.size());
+        for (Group group : groups) {
+            List<Row> rows = null;
+            for (int i = 0; i < group.rows.size(); i++) {
+                Row row = group.rows.get(i);
+                long end = row.event.getEndDate().getTimeInMillis();
+                if (row.running != isRunning(row.event.getStartDate().getTimeInMillis(), end, now)
+                        || row.over != isOver(end, now)) {
+                    // Copy the rows of this group on the first change
+                    if (rows == null) rows = new ArrayList<>(group.rows);
+                    rows.set(i, factory.create(row.event, row.time, now));
+                }
+            }
+            advanced.add(rows == null ? group
+                    : new Group(group.eventGroup, group.date, rows, group.id));
+        }
+        return new ScheduleRenderModel(advanced, factory, transitions, now);
+    }
+
+    /**
+     * Finds the next instant at which an event starts or ends
+     * @param now Current time in milliseconds
+     * @return The next transition in milliseconds or {@link Long#MAX_VALUE} if there is none
+     */
+    long getNextTransition(long now) {
+        int index = Arrays.binarySearch(transitions, now);
+        // Index of the first transition after now
+        index = index < 0 ? -index - 1 : index + 1;
+        while (index < transitions.length && transitions[index] <= now) index++;
+        return index < transitions.length ? transitions[index] : Long.MAX_VALUE;
+    }
+
+    /**
+     * Compares the model with an older one
+     * @param old The older model
+     * @return Ids of the rows whose display data has changed or null if groups or rows have been
+     * added, removed or reordered
+     */
+    Set<Long> diff(ScheduleRenderModel old) {
+        if (old.groups.size() != groups.size()) return null;
+        Set<Long> changed = new HashSet<>();
+        for (int i = 0; i < groups.size(); i++) {
+            Group group = groups.get(i);
+            Group oldGroup = old.groups.get(i);
+            if (group.id != oldGroup.id || group.rows.size() != oldGroup.rows.size()
+                    || !group.date.equals(oldGroup.date)) {
+                return null;
+            }
+            for (int j = 0; j < group.rows.size(); j++) {
+                Row row = group.rows.get(j);
+                Row oldRow = oldGroup.rows.get(j);
+                if (row.getId() != oldRow.getId()) return null;
+                if (!row.isSameContent(oldRow)) changed.add(row.getId());
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Checks if an event has started or ended since the model has been built
+     * @param now Current time in milliseconds
+     * @return true if the running and over flags are outdated, false else
+     */
+    boolean isStale(long now) {
+        return now >= validUntil;
+    }
+
+    /**
+     * Gets the number of groups
+     * @return Number of groups
+     */
+    int getGroupCount() {
+        return groups.size();
+    }
+
+    /**
+     * Gets a group
+     * @param groupPosition Position of the group
+     * @return The group
+     */
+    Group getGroup(int groupPosition) {
+        return groups.get(groupPosition);
+    }
+
+    /**
+     * Gets a row
+     * @param groupPosition Position of the group
+     * @param childPosition Position of the row within the group
+     * @return The row
+     */
+    Row getRow(int groupPosition, int childPosition) {
+        return groups.get(groupPosition).rows.get(childPosition);
+    }
+
+    /**
+     * Gets the reminder icon for a row
+     * @param row The row
+     * @param hasReminder Set if a reminder is set for the event of the row
+     * @return Shared state of the icon or null if the row shows no reminder icon
+     */
+    Drawable.ConstantState getReminderIcon(Row row, boolean hasReminder) {
+        if (row.running || row.over) return null;
+        return hasReminder ? factory.reminderOnIcon : factory.reminderAddIcon;
+    }
+
+    /**
+     * Checks if an event is running
+     * @param start Start of the event in milliseconds
+     * @param end End of the event in milliseconds
+     * @param now Current time in milliseconds
+     * @return true if the event has started and not yet ended
+     */
+    private static boolean isRunning(long start, long end, long now) {
+        return now > start && now < end;
+    }
+
+    /**
+     * Checks if an event is over
+     * @param end End of the event in milliseconds
+     * @param now Current time in milliseconds
+     * @return true if the event has ended
+     */
+    private static boolean isOver(long end, long now) {
+        return now > end;
+    }
+
+    /**
+     * Creates the interval index of all transitions
+     * @param instants Instants at which a flag changes, in any order
+     * @return The sorted instants
+     */
+    private static long[] toTransitions(List<Long> instants) {
+        long[] transitions = new long[instants.size()];
+        for (int i = 0; i < transitions.length; i++) {
+            transitions[i] = instants.get(i);
+        }
+        Arrays.sort(transitions);
+        return transitions;
+    }
+
+    /**
+     * Formats the group date display string
+     * @param context Context used to format the date
+     * @param eventGroup Group to be formatted
+     * @return Formatted date
+     */
+    static String formatGroupDate(Context context, EventGroup eventGroup) {
+        if (eventGroup.getDate() == null) return "";
+        return DateUtils.formatDateTime(context, eventGroup.getDate().getTimeInMillis(),
+                DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_WEEKDAY |
+                        DateUtils.FORMAT_SHOW_YEAR | DateUtils.FORMAT_ABBREV_WEEKDAY);
+    }
+
+    /**
+     * Resolves the shared state of a drawable
+     * @param resources Resources to be used to fetch the drawable
+     * @param id Resource id of the drawable
+     * @return Shared state of the drawable
+     */
+    private static Drawable.ConstantState getState(Resources resources, int id) {
+        return ResourcesCompat.getDrawable(resources, id, null).getConstantState();
+    }
+
+    /**
+     * Creates the shared state of a background that changes its color when pressed
+     * @param resources Resources to be used to fetch the colors
+     * @param pressedColor Resource id of the pressed color
+     * @param color Resource id of the default color
+     * @return Shared state of the background
+     */
+    private static Drawable.ConstantState createStateList(Resources resources, int pressedColor,
+                                                          int color) {
+        StateListDrawable stateList = new StateListDrawable();
+        stateList.addState(new int[]{android.R.attr.state_pressed},
+                ResourcesCompat.getDrawable(resources, pressedColor, null));
+        stateList.addState(new int[]{}, ResourcesCompat.getDrawable(resources, color, null));
+        return stateList.getConstantState();
+    }
+}
@@ -0,0 +1,100 @@
+package de.mbdevelopment.android.rbtvsendeplan;
+
+import android.util.SparseArray;
+
+/**
+ * Immutable version of the schedule. Every published change of the schedule gets a new, higher
+ * generation, so consumers can remember the last generation they have processed and skip
+ * redundant work. The content hash identifies identical schedules across downloads.
+ */
+class ScheduleSnapshot {
+
+    /**
+     * Generation of snapshots whose generation is unknown, e.g. legacy files
+     */
+    public static final long NO_GENERATION = 0;
+
+    /**
+     * Grouped list of events
+     */
+    private final SerializableSparseArray<EventGroup> eventGroups;
+
+    /**
+     * Monotonically increasing generation of this snapshot
+     */
+    private final long generation;
+
+    /**
+     * Hash over the contents of all events
+     */
+    private final long contentHash;
+
+    /**
+     * Whether all days of the schedule are contained or only a part that has been loaded first
+     */
+    private final boolean complete;
+
+    public ScheduleSnapshot(SerializableSparseArray<EventGroup> eventGroups, long generation,
+                            long contentHash) {
+        this(eventGroups, generation, contentHash, true);
+    }
+
+    public ScheduleSnapshot(SerializableSparseArray<EventGroup> eventGroups, long generation,
+                            long contentHash, boolean complete) {
+        this.eventGroups = eventGroups;
+        this.generation = generation;
+        this.contentHash = contentHash;
+        this.complete = complete;
+    }
+
+    public SerializableSparseArray<EventGroup> getEventGroups() {
+        return eventGroups;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    public long getContentHash() {
+        return contentHash;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Checks if another snapshot represents the same version of the schedule
+     * @param other Snapshot to be compared, may be null
+     * @return true if generation, content and completeness are equal, false else
+     */
+    public boolean isSameVersion(ScheduleSnapshot other) {
+        return other != null && other.generation == generation
+                && other.contentHash == contentHash && other.complete == complete;
+    }
+
+    /**
+     * Computes a hash over all displayed and reminder relevant data of a schedule. Identical
+     * schedules produce identical hashes.
+     * @param eventGroups The schedule
+     * @return 64 bit FNV-1a hash of the schedule
+     */
+    public static long computeHash(SparseArray<EventGroup> eventGroups) {
+        long hash = Fnv.OFFSET_BASIS;
+        if (eventGroups == null) return hash;
+        hash = Fnv.add(hash, eventGroups.size());
+        for (int i = 0; i < eventGroups.size(); i++) {
+            EventGroup group = eventGroups.valueAt(i);
+            hash = Fnv.add(hash, group.getEvents().size());
+            for (Event e : group.getEvents()) {
+                hash = Fnv.add(hash, e.getId());
+                hash = Fnv.add(hash, e.getRecurringId());
+                hash = Fnv.add(hash, e.getTitle());
+                hash = Fnv.add(hash, e.getType().ordinal());
+                hash = Fnv.add(hash, e.getStartDate().getTimeInMillis());
+                hash = Fnv.add(hash, e.getEndDate().getTimeInMillis());
+            }
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,484 @@
+package de.mbdevelopment.android.rbtvsendeplan;
+
+import android.content.Context;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * In-memory full-text index over the titles of the schedule and the history archive. Titles are
+ * interned, so a title shared by many episodes is normalized and split into trigrams only once,
+ * when it is seen for the first time. Queries intersect the posting lists of their trigrams and
+ * verify the few candidates, which keeps as-you-type lookups far below a millisecond.
+ * <p>
+ * The schedule is re-indexed whenever a new version is published, archived days are added as
+ * they are archived. Both happen on a background thread, which publishes an immutable copy of
+ * the index after each update, so searches never wait for an update. All methods are
+ * thread-safe.
+ */
+class SearchIndex {
+
+    /**
+     * Length of the indexed substrings
+     */
+    private static final int GRAM_LENGTH = 3;
+
+    /**
+     * Maximum number of archived hits returned by a query
+     */
+    private static final int MAX_ARCHIVED_HITS = 50;
+
+    /**
+     * Thread all updates of the index are made on, in the order they have been requested
+     */
+    private static final ExecutorService INDEXER = Executors.newSingleThreadExecutor();
+
+    /**
+     * Position of an event matching a query
+     */
+    static class Hit implements Comparable<Hit> {
+
+        /**
+         * Epoch day of the event, or -1 - index for groups of the schedule without a date. Equals
+         * the id of the group in the {@link ScheduleRenderModel}.
+         */
+        final long day;
+
+        /**
+         * Position of the event within its day
+         */
+        final int position;
+
+        /**
+         * Whether the event is from the history archive instead of the current schedule
+         */
+        final boolean archived;
+
+        private Hit(long day, int position, boolean archived) {
+            this.day = day;
+            this.position = position;
+            this.archived = archived;
+        }
+
+        @Override
+        public int compareTo(Hit another) {
+            if (day != another.day) return day < another.day ? -1 : 1;
+            return position - another.position;
+        }
+    }
+
+    /**
+     * Growable list of primitive values
+     */
+    private static class LongList {
+        long[] values = new long[4];
+        int size;
+
+        void add(long value) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        void addSorted(long value) {
+            if (size == 0 || values[size - 1] <= value) {
+                add(value);
+                return;
+            }
+            // Only needed if older days arrive after newer ones
+            int index = Arrays.binarySearch(values, 0, size, value);
+            if (index < 0) index = -index - 1;
+            add(0);
+            System.arraycopy(values, index, values, index + 1, size - 1 - index);
+            values[index] = value;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    /**
+     * Published version of the index. Never modified, updates publish a new version that shares
+     * all unchanged lists with the previous one.
+     */
+    private static class Index {
+
+        /**
+         * Empty index
+         */
+        static final Index EMPTY = new Index(new String[0], new HashMap<Long, long[]>(),
+                new HashMap<Integer, List<Hit>>(), new HashMap<Integer, long[]>());
+
+        /**
+         * Normalized titles by id
+         */
+        final String[] titles;
+
+        /**
+         * Ascending ids of the titles containing a trigram, by packed trigram
+         */
+        final Map<Long, long[]> postings;
+
+        /**
+         * Hits in the current schedule by title id
+         */
+        final Map<Integer, List<Hit>> scheduled;
+
+        /**
+         * Ascending archived days packed as day and position, by title id
+         */
+        final Map<Integer, long[]> archived;
+
+        Index(String[] titles, Map<Long, long[]> postings, Map<Integer, List<Hit>> scheduled,
+              Map<Integer, long[]> archived) {
+            this.titles = titles;
+            this.postings = postings;
+            this.scheduled = scheduled;
+            this.archived = archived;
+        }
+    }
+
+    /**
+     * Current version of the index used by searches
+     */
+    private volatile Index current = Index.EMPTY;
+
+    /**
+     * Latest schedule waiting to be indexed, null if it has been indexed
+     */
+    private final AtomicReference<ScheduleSnapshot> pendingSchedule = new AtomicReference<>();
+
+    /**
+     * Whether the whole archive has been requested
+     */
+    private final AtomicBoolean archiveLoaded = new AtomicBoolean(false);
+
+    // The following fields are only used on the indexer thread
+
+    /**
+     * Ids of all interned titles by normalized title
+     */
+    private final Map<String, Integer> titleIds = new HashMap<>();
+
+    /**
+     * Normalized titles by id
+     */
+    private final List<String> titles = new ArrayList<>();
+
+    /**
+     * Ascending ids of the titles containing a trigram, by packed trigram
+     */
+    private final Map<Long, LongList> postings = new HashMap<>();
+
+    /**
+     * Trigrams whose posting list has changed since the last publication
+     */
+    private final Set<Long> changedGrams = new HashSet<>();
+
+    /**
+     * Hits in the current schedule by title id
+     */
+    private Map<Integer, List<Hit>> scheduled = new HashMap<>();
+
+    /**
+     * Version of the schedule the hits refer to
+     */
+    private ScheduleSnapshot indexed;
+
+    /**
+     * Ascending archived days packed as day and position, by title id
+     */
+    private final Map<Integer, LongList> archived = new HashMap<>();
+
+    /**
+     * Titles whose archived days have changed since the last publication
+     */
+    private final Set<Integer> changedArchived = new HashSet<>();
+
+    /**
+     * Days that have been added from the archive
+     */
+    private final Set<Long> archivedDays = new HashSet<>();
+
+    // Private constructor. Prevents instantiation from other classes.
+    private SearchIndex() {}
+
+    /**
+     * Implements Bill Pugh's version of the singleton pattern instantiation
+     */
+    private static class InstanceHolder {
+        private static final SearchIndex INSTANCE = new SearchIndex();
+    }
+
+    /**
+     * Gets the singleton SearchIndex
+     * @return The singleton instance
+     */
+    public static SearchIndex getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    /**
+     * Indexes a new version of the schedule in the background. Only titles that have not been
+     * seen before are split into trigrams. If several versions arrive before the indexer gets to
+     * them, only the latest one is indexed.
+     * @param snapshot The published schedule
+     */
+    void index(ScheduleSnapshot snapshot) {
+        if (pendingSchedule.getAndSet(snapshot) != null) return;
+        INDEXER.execute(new Runnable() {
+            @Override
+            public void run() {
+                indexSchedule(pendingSchedule.getAndSet(null));
+                publish();
+            }
+        });
+    }
+
+    /**
+     * Adds archived days to the index in the background. Days that have already been added are
+     * skipped.
+     * @param days Archived events by epoch day
+     */
+    void addArchivedDays(final Map<Long, List<Event>> days) {
+        INDEXER.execute(new Runnable() {
+            @Override
+            public void run() {
+                indexArchivedDays(days);
+                publish();
+            }
+        });
+    }
+
+    /**
+     * Reads the whole history archive into the index unless this has been done before. Should
+     * not be called on the main thread.
+     * @param context Context used to access the internal storage
+     */
+    void loadArchive(Context context) {
+        if (!archiveLoaded.compareAndSet(false, true)) return;
+        addArchivedDays(HistoryArchive.readAll(context));
+    }
+
+    /**
+     * Finds all events whose title contains a query, ignoring case. Uses the latest published
+     * version of the index and never blocks.
+     * @param query The query
+     * @return Hits in the current schedule in list order, followed by the most recent archived
+     * hits, newest first. Empty if the query is blank.
+     */
+    List<Hit> search(String query) {
+        String normalized = normalize(query);
+        if (normalized.isEmpty()) return Collections.emptyList();
+
+        Index index = current;
+        List<Hit> result = new ArrayList<>();
+        List<long[]> archivedLists = new ArrayList<>();
+        for (int id : findTitles(index, normalized)) {
+            List<Hit> hits = index.scheduled.get(id);
+            if (hits != null) result.addAll(hits);
+            long[] days = index.archived.get(id);
+            if (days != null) archivedLists.add(days);
+        }
+        Collections.sort(result);
+
+        // Merge the newest archived hits from the ends of the sorted lists
+        int[] ends = new int[archivedLists.size()];
+        for (int i = 0; i < ends.length; i++) {
+            ends[i] = archivedLists.get(i).length;
+        }
+        for (int n = 0; n < MAX_ARCHIVED_HITS; n++) {
+            int newest = -1;
+            for (int i = 0; i < ends.length; i++) {
+                if (ends[i] > 0 && (newest == -1 || archivedLists.get(i)[ends[i] - 1]
+                        > archivedLists.get(newest)[ends[newest] - 1])) {
+                    newest = i;
+                }
+            }
+            if (newest == -1) break;
+            long packed = archivedLists.get(newest)[--ends[newest]];
+            result.add(new Hit(packed >> 16, (int) (packed & 0xffff), true));
+        }
+        return result;
+    }
+
+    /**
+     * Replaces the hits of the schedule. Must be called on the indexer thread.
+     * @param snapshot The schedule to be indexed
+     */
+    private void indexSchedule(ScheduleSnapshot snapshot) {
+        if (snapshot.isSameVersion(indexed)) return;
+        SparseArray<EventGroup> eventGroups = snapshot.getEventGroups();
+        Map<Integer, List<Hit>> hits = new HashMap<>();
+        for (int i = 0; i < eventGroups.size(); i++) {
+            EventGroup group = eventGroups.valueAt(i);
+            // Same ids as the groups of the render model
+            long day = group.getDate() == null ? -1 - i : Utils.toEpochDay(group.getDate());
+            List<Event> events = group.getEvents();
+            for (int j = 0; j < events.size(); j++) {
+                int id = intern(events.get(j).getTitle());
+                List<Hit> list = hits.get(id);
+                if (list == null) {
+                    list = new ArrayList<>(2);
+                    hits.put(id, list);
+                }
+                list.add(new Hit(day, j, false));
+            }
+        }
+        scheduled = hits;
+        indexed = snapshot;
+    }
+
+    /**
+     * Adds archived days. Must be called on the indexer thread.
+     * @param days Archived events by epoch day
+     */
+    private void indexArchivedDays(Map<Long, List<Event>> days) {
+        for (Map.Entry<Long, List<Event>> day : days.entrySet()) {
+            if (!archivedDays.add(day.getKey())) continue;
+            List<Event> events = day.getValue();
+            for (int j = 0; j < events.size(); j++) {
+                int id = intern(events.get(j).getTitle());
+                LongList list = archived.get(id);
+                if (list == null) {
+                    list = new LongList();
+                    archived.put(id, list);
+                }
+                list.addSorted(day.getKey() << 16 | j);
+                changedArchived.add(id);
+            }
+        }
+    }
+
+    /**
+     * Publishes the current state as a new version of the index. Only the changed lists are
+     * copied. Must be called on the indexer thread.
+     */
+    private void publish() {
+        Index previous = current;
+        Map<Long, long[]> nextPostings = previous.postings;
+        if (!changedGrams.isEmpty()) {
+            nextPostings = new HashMap<>(previous.postings);
+            for (Long gram : changedGrams) {
+                nextPostings.put(gram, postings.get(gram).toArray());
+            }
+            changedGrams.clear();
+        }
+        Map<Integer, long[]> nextArchived = previous.archived;
+        if (!changedArchived.isEmpty()) {
+            nextArchived = new HashMap<>(previous.archived);
+            for (Integer id : changedArchived) {
+                nextArchived.put(id, archived.get(id).toArray());
+            }
+            changedArchived.clear();
+        }
+        String[] nextTitles = previous.titles.length == titles.size() ? previous.titles
+                : titles.toArray(new String[titles.size()]);
+        current = new Index(nextTitles, nextPostings, scheduled, nextArchived);
+    }
+
+    /**
+     * Finds the ids of all titles containing a normalized query
+     * @param index Version of the index to be searched
+     * @param query Normalized, non-empty query
+     * @return Ids of the matching titles
+     */
+    private static List<Integer> findTitles(Index index, String query) {
+        List<Integer> result = new ArrayList<>();
+        if (query.length() < GRAM_LENGTH) {
+            // Too short for the index, the interned titles are few enough to be scanned
+            for (int id = 0; id < index.titles.length; id++) {
+                if (index.titles[id].contains(query)) result.add(id);
+            }
+            return result;
+        }
+
+        // Intersect the posting lists, starting with the shortest one
+        int count = query.length() - GRAM_LENGTH + 1;
+        long[][] lists = new long[count][];
+        for (int i = 0; i < count; i++) {
+            lists[i] = index.postings.get(pack(query, i));
+            if (lists[i] == null) return result;
+        }
+        int shortest = 0;
+        for (int i = 1; i < count; i++) {
+            if (lists[i].length < lists[shortest].length) shortest = i;
+        }
+        int[] cursors = new int[count];
+        long[] candidates = lists[shortest];
+        candidates:
+        for (long id : candidates) {
+            for (int i = 0; i < count; i++) {
+                long[] list = lists[i];
+                while (cursors[i] < list.length && list[cursors[i]] < id) cursors[i]++;
+                if (cursors[i] == list.length) break candidates;
+                if (list[cursors[i]] != id) continue candidates;
+            }
+            // All trigrams are contained, check that they are contained in order
+            if (index.titles[(int) id].contains(query)) result.add((int) id);
+        }
+        return result;
+    }
+
+    /**
+     * Gets the id of a title, adding it and its trigrams to the index if it is new. Must be called
+     * on the indexer thread.
+     * @param title The title, may be null
+     * @return Id of the normalized title
+     */
+    private int intern(String title) {
+        String normalized = normalize(title);
+        Integer id = titleIds.get(normalized);
+        if (id != null) return id;
+
+        id = titles.size();
+        titles.add(normalized);
+        titleIds.put(normalized, id);
+        for (int i = 0; i + GRAM_LENGTH <= normalized.length(); i++) {
+            long gram = pack(normalized, i);
+            LongList list = postings.get(gram);
+            if (list == null) {
+                list = new LongList();
+                postings.put(gram, list);
+            }
+            // Ids are ascending, a repeated trigram of the same title is the last entry
+            if (list.size == 0 || list.values[list.size - 1] != id) {
+                list.add(id);
+                changedGrams.add(gram);
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Normalizes a title or query for case-insensitive matching
+     * @param text Title or query, may be null
+     * @return Lower case text without surrounding whitespace
+     */
+    private static String normalize(String text) {
+        return text == null ? "" : text.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Packs the trigram at a position of a normalized string into a single number
+     * @param text Normalized string
+     * @param start Position of the first character
+     * @return The packed trigram
+     */
+    private static long pack(String text, int start) {
+        return (long) text.charAt(start) << 32 | (long) text.charAt(start + 1) << 16
+                | text.charAt(start + 2);
+    }
+}
@@ -0,0 +1,249 @@
+package de.mbdevelopment.android.rbtvsendeplan;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.RingtoneManager;
+import android.net.Uri;
+import android.preference.PreferenceManager;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Parsed user settings. The preferences are parsed once into an immutable {@link Snapshot}, which
+ * is only rebuilt when a preference changes, so hot paths read plain fields instead of parsing
+ * preference strings. Components register a {@link Listener} to be told which group of settings
+ * has changed instead of watching the preference keys themselves.
+ */
+class Settings implements SharedPreferences.OnSharedPreferenceChangeListener {
+
+    /**
+     * Groups of settings that change together
+     */
+    enum Change {
+        /**
+         * Whether and how often the schedule is refreshed
+         */
+        REFRESH,
+
+        /**
+         * Whether downloads need WiFi
+         */
+        DOWNLOAD,
+
+        /**
+         * Offset of reminders before the start of events
+         */
+        REMINDER_OFFSET,
+
+        /**
+         * Vibration, LED and sound of notifications
+         */
+        NOTIFICATION,
+
+        /**
+         * Rules of automatic reminders
+         */
+        SUBSCRIPTIONS
+    }
+
+    /**
+     * Receives changes of the settings
+     */
+    interface Listener {
+
+        /**
+         * Called on the main thread after a group of settings has changed
+         * @param change The changed group
+         * @param settings The new settings
+         */
+        void onSettingsChanged(Change change, Snapshot settings);
+    }
+
+    /**
+     * Immutable version of all settings
+     */
+    static class Snapshot {
+
+        /**
+         * Download only if connected to WiFi
+         */
+        final boolean wifiOnly;
+
+        /**
+         * Refresh the schedule periodically
+         */
+        final boolean refreshPeriodically;
+
+        /**
+         * Period of the refresh in milliseconds
+         */
+        final long refreshPeriod;
+
+        /**
+         * Offset of reminders before the start of events in milliseconds
+         */
+        final int reminderOffset;
+
+        /**
+         * Vibrate on notifications
+         */
+        final boolean vibrate;
+
+        /**
+         * Flash the LED on notifications
+         */
+        final boolean lights;
+
+        /**
+         * Notification sound or null if silent
+         */
+        final Uri sound;
+
+        /**
+         * Compiled rules of automatic reminders
+         */
+        final SubscriptionMatcher subscriptions;
+
+        /**
+         * Parses the preferences
+         * @param context Context used to resolve the keys
+         * @param pref The default shared preferences
+         * @param subscriptions Compiled rules or null if they have to be compiled
+         */
+        private Snapshot(Context context, SharedPreferences pref,
+                         SubscriptionMatcher subscriptions) {
+            wifiOnly = pref.getBoolean(context.getString(R.string.pref_wifi_key), true);
+            refreshPeriodically = pref.getBoolean(context.getString(R.string.pref_refresh_key),
+                    true);
+            // Periods and offsets are stored in minutes
+            refreshPeriod = Long.parseLong(pref.getString(
+                    context.getString(R.string.pref_refresh_time_key),
+                    context.getString(R.string.pref_refresh_time_default))) * 60000L;
+            reminderOffset = Integer.parseInt(pref.getString(
+                    context.getString(R.string.pref_reminder_offset_key),
+                    context.getString(R.string.pref_reminder_offset_default))) * 60000;
+            vibrate = pref.getBoolean(context.getString(R.string.pref_vibrate_key), true);
+            lights = pref.getBoolean(context.getString(R.string.pref_led_key), true);
+            String notificationPref = pref.getString(
+                    context.getString(R.string.pref_notification_ringtone_key),
+                    RingtoneManager.getDefaultUri(RingtoneManager.TYPE_NOTIFICATION).toString());
+            // The string for 'silent' is "" with a length of 0
+            sound = notificationPref.length() > 0 ? Uri.parse(notificationPref) : null;
+            this.subscriptions = subscriptions != null ? subscriptions : SubscriptionMatcher.parse(
+                    pref.getString(context.getString(R.string.pref_subscription_keywords_key),
+                            null),
+                    pref.getStringSet(context.getString(R.string.pref_subscription_types_key),
+                            null));
+        }
+    }
+
+    /**
+     * Application context used to resolve the keys
+     */
+    private Context context;
+
+    /**
+     * Current settings or null before {@link #init(Context)}
+     */
+    private volatile Snapshot snapshot;
+
+    /**
+     * Registered listeners
+     */
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    // Private constructor. Prevents instantiation from other classes.
+    private Settings() {}
+
+    /**
+     * Implements Bill Pugh's version of the singleton pattern instantiation
+     */
+    private static class InstanceHolder {
+        private static final Settings INSTANCE = new Settings();
+    }
+
+    /**
+     * Gets the singleton Settings
+     * @return The singleton instance
+     */
+    public static Settings getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    /**
+     * Parses the preferences and starts following their changes unless this has been done
+     * before. Must be called on the main thread when the application is created.
+     * @param context Context used to access the preferences
+     */
+    void init(Context context) {
+        if (snapshot != null) return;
+        this.context = context.getApplicationContext();
+        SharedPreferences pref = PreferenceManager.getDefaultSharedPreferences(this.context);
+        snapshot = new Snapshot(this.context, pref, null);
+        pref.registerOnSharedPreferenceChangeListener(this);
+    }
+
+    /**
+     * Gets the current settings. May be called on any thread.
+     * @return The current settings
+     */
+    Snapshot get() {
+        return snapshot;
+    }
+
+    /**
+     * Registers a listener
+     * @param listener The listener to be added
+     */
+    void addListener(Listener listener) {
+        if (!listeners.contains(listener)) listeners.add(listener);
+    }
+
+    /**
+     * Unregisters a listener
+     * @param listener The listener to be removed
+     */
+    void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+        Change change = getChange(key);
+        if (change == null) return;
+
+        // Only recompile the rules if they have changed
+        Snapshot current = new Snapshot(context, sharedPreferences,
+                change == Change.SUBSCRIPTIONS ? null : snapshot.subscriptions);
+        snapshot = current;
+        for (Listener listener : listeners) {
+            listener.onSettingsChanged(change, current);
+        }
+    }
+
+    /**
+     * Gets the group of settings a preference belongs to
+     * @param key Preference key, may be null
+     * @return The group or null if the preference is not a setting
+     */
+    private Change getChange(String key) {
+        if (key == null) return null;
+        if (key.equals(context.getString(R.string.pref_refresh_key))
+                || key.equals(context.getString(R.string.pref_refresh_time_key))) {
+            return Change.REFRESH;
+        } else if (key.equals(context.getString(R.string.pref_wifi_key))) {
+            return Change.DOWNLOAD;
+        } else if (key.equals(context.getString(R.string.pref_reminder_offset_key))) {
+            return Change.REMINDER_OFFSET;
+        } else if (key.equals(context.getString(R.string.pref_vibrate_key))
+                || key.equals(context.getString(R.string.pref_led_key))
+                || key.equals(context.getString(R.string.pref_notification_ringtone_key))) {
+            return Change.NOTIFICATION;
+        } else if (key.equals(context.getString(R.string.pref_subscription_keywords_key))
+                || key.equals(context.getString(R.string.pref_subscription_types_key))) {
+            return Change.SUBSCRIPTIONS;
+        }
+        return null;
+    }
+}
@@ -20,7 +20,6 @@ public class StartServiceReceiver extends BroadcastReceiver {
 
         // Start reminder service
         Intent reminderIntent = new Intent(context, ReminderService.class);
-        reminderIntent.putExtra(ReminderService.EXTRA_BOOT, true);
         context.startService(reminderIntent);
 
         // Start data service
@@ -0,0 +1,99 @@
+package de.mbdevelopment.android.rbtvsendeplan;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * Measures the phases of a cold start up to the first drawn schedule row. Each phase is recorded
+ * once relative to the creation of the application. The summary is logged with the version of
+ * the app when the first row has been drawn, so time-to-first-row can be compared across
+ * releases.
+ */
+class StartupTrace {
+
+    /**
+     * Log tag of the summary
+     */
+    private static final String TAG = "StartupTrace";
+
+    /**
+     * Maximum time between the creation of the application and the activity in milliseconds.
+     * Processes started for alarms or widgets and opened later are not traced.
+     */
+    private static final long MAX_ACTIVITY_DELAY = 10 * 1000L;
+
+    /**
+     * Phases of the start in the order they usually occur
+     */
+    enum Phase {
+        PRELOAD_FIRST_DAY,
+        PRELOAD_COMPLETE,
+        ACTIVITY_CREATED,
+        FIRST_SCREEN,
+        MODEL_BUILT,
+        FIRST_ROW
+    }
+
+    /**
+     * Time of the application creation or -1 if the trace is not running
+     */
+    private static volatile long origin = -1;
+
+    /**
+     * Time of each phase relative to the origin or -1 if it has not been reached
+     */
+    private static final long[] times = new long[Phase.values().length];
+
+    // Static helper functions only
+    private StartupTrace() {}
+
+    /**
+     * Starts the trace. Must be called when the application is created.
+     */
+    static synchronized void start() {
+        origin = SystemClock.elapsedRealtime();
+        for (int i = 0; i < times.length; i++) {
+            times[i] = -1;
+        }
+    }
+
+    /**
+     * Records that a phase has been reached. Later calls for the same phase are ignored.
+     * @param phase The phase
+     */
+    static void mark(Phase phase) {
+        // Called for every drawn row, so the finished trace must not take the lock
+        if (origin == -1) return;
+        synchronized (StartupTrace.class) {
+            if (origin == -1 || times[phase.ordinal()] != -1) return;
+            long time = SystemClock.elapsedRealtime() - origin;
+            if (phase == Phase.ACTIVITY_CREATED && time > MAX_ACTIVITY_DELAY) {
+                origin = -1;
+                return;
+            }
+            times[phase.ordinal()] = time;
+            if (phase == Phase.FIRST_ROW) finish();
+        }
+    }
+
+    /**
+     * Logs the summary and stops the trace
+     */
+    private static void finish() {
+        StringBuilder summary = new StringBuilder();
+        summary.append(BuildConfig.VERSION_NAME).append(" (").append(BuildConfig.VERSION_CODE)
+                .append(")");
+        for (Phase phase : Phase.values()) {
+            summary.append(' ').append(phase.name().toLowerCase(Locale.US)).append('=');
+            if (times[phase.ordinal()] == -1) {
+                summary.append('-');
+            } else {
+                summary.append(times[phase.ordinal()]).append("ms");
+            }
+        }
+        Log.i(TAG, summary.toString());
+        origin = -1;
+    }
+}
@@ -0,0 +1,275 @@
+package de.mbdevelopment.android.rbtvsendeplan;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Matches events against rule-based reminder subscriptions. All title keywords are compiled into
+ * a single Aho-Corasick automaton, so matching them is linear in the length of the title
+ * regardless of the number of keywords. Regular expressions are kept as separate patterns, which
+ * backtrack. Each of them may only read a bounded number of characters per title, so a pathological
+ * expression cannot stall the reminder worker.
+ */
+class SubscriptionMatcher {
+
+    /**
+     * Matcher without any rules
+     */
+    static final SubscriptionMatcher EMPTY =
+            new SubscriptionMatcher(new ArrayList<String>(), new ArrayList<Pattern>(),
+                    EnumSet.noneOf(Event.Type.class));
+
+    /**
+     * Number of characters a regular expression may read per title before it is given up
+     */
+    private static final int MATCH_BUDGET = 100000;
+
+    /**
+     * Goto function of the automaton. Maps characters to the following state for each state.
+     */
+    private final List<Map<Character, Integer>> transitions = new ArrayList<>();
+
+    /**
+     * Failure function of the automaton
+     */
+    private int[] failure;
+
+    /**
+     * Marks states in which a keyword has been found
+     */
+    private boolean[] accepting;
+
+    /**
+     * Regular expression rules
+     */
+    private final List<Pattern> regexes;
+
+    /**
+     * Types of which all events are subscribed
+     */
+    private final Set<Event.Type> types;
+
+    /**
+     * Thrown when a regular expression has read more characters than {@link #MATCH_BUDGET}
+     */
+    private static class BudgetExceededException extends RuntimeException {}
+
+    /**
+     * Title that can only be read {@link #MATCH_BUDGET} times, which bounds the backtracking of
+     * a regular expression
+     */
+    private static class BoundedSequence implements CharSequence {
+
+        private final String text;
+        private int budget = MATCH_BUDGET;
+
+        BoundedSequence(String text) {
+            this.text = text;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (--budget < 0) throw new BudgetExceededException();
+            return text.charAt(index);
+        }
+
+        @Override
+        public int length() {
+            return text.length();
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return text.subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    /**
+     * Creates a matcher
+     * @param keywords Title keywords, matched case-insensitively
+     * @param regexes Regular expression rules
+     * @param types Types of which all events are subscribed
+     */
+    private SubscriptionMatcher(List<String> keywords, List<Pattern> regexes,
+                                Set<Event.Type> types) {
+        this.regexes = regexes;
+        this.types = types;
+        buildAutomaton(keywords);
+    }
+
+    /**
+     * Parses subscription rules. Every line of the rules text is one rule. Lines enclosed in
+     * slashes are regular expressions, all other lines are keywords that have to be contained in
+     * the title. Invalid regular expressions and expressions with backreferences are ignored.
+     * @param rules Rules text, may be null
+     * @param typeNames Names of {@link Event.Type}s of which all events are subscribed, may be null
+     * @return The compiled matcher
+     */
+    static SubscriptionMatcher parse(String rules, Set<String> typeNames) {
+        List<String> keywords = new ArrayList<>();
+        List<Pattern> regexes = new ArrayList<>();
+        if (rules != null) {
+            for (String line : rules.split("\n")) {
+                String rule = line.trim();
+                if (rule.length() > 2 && rule.startsWith("/") && rule.endsWith("/")) {
+                    String regex = rule.substring(1, rule.length() - 1);
+                    if (hasBackreference(regex)) continue;
+                    try {
+                        regexes.add(Pattern.compile(regex, Pattern.CASE_INSENSITIVE));
+                    } catch (PatternSyntaxException e) {
+                        // Invalid rule
+                    }
+                } else if (rule.length() > 0) {
+                    keywords.add(rule.toLowerCase(Locale.GERMAN));
+                }
+            }
+        }
+
+        Set<Event.Type> types = EnumSet.noneOf(Event.Type.class);
+        if (typeNames != null) {
+            for (String name : typeNames) {
+                try {
+                    types.add(Event.Type.valueOf(name));
+                } catch (IllegalArgumentException e) {
+                    // Unknown type
+                }
+            }
+        }
+
+        if (keywords.isEmpty() && regexes.isEmpty() && types.isEmpty()) return EMPTY;
+        return new SubscriptionMatcher(keywords, regexes, types);
+    }
+
+    /**
+     * Checks if a regular expression refers back to a group, which can make matching
+     * exponential
+     * @param regex The regular expression
+     * @return true if it contains a numbered or named backreference, false else
+     */
+    private static boolean hasBackreference(String regex) {
+        for (int i = 0; i + 1 < regex.length(); i++) {
+            if (regex.charAt(i) != '\\') continue;
+            char next = regex.charAt(++i);
+            if ((next >= '1' && next <= '9') || next == 'k') return true;
+        }
+        return false;
+    }
+
+    /**
+     * Checks if there are any rules
+     * @return true if no event can match, false else
+     */
+    boolean isEmpty() {
+        return this == EMPTY;
+    }
+
+    /**
+     * Checks if an event is subscribed by any rule
+     * @param event The event to be checked
+     * @return true if a rule matches, false else
+     */
+    boolean matches(Event event) {
+        if (event.getType() != null && types.contains(event.getType())) return true;
+        String title = event.getTitle();
+        if (title == null) return false;
+        if (containsKeyword(title)) return true;
+        for (Pattern regex : regexes) {
+            try {
+                if (regex.matcher(new BoundedSequence(title)).find()) return true;
+            } catch (BudgetExceededException e) {
+                // The expression backtracks too much to be evaluated, it does not match
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Runs the automaton over a title
+     * @param title The title to be searched
+     * @return true if any keyword is contained, false else
+     */
+    private boolean containsKeyword(String title) {
+        if (transitions.size() < 2) return false;
+        String text = title.toLowerCase(Locale.GERMAN);
+        int state = 0;
+        for (int i = 0; i < text.length(); i++) {
+            Character c = text.charAt(i);
+            Integer next;
+            while ((next = transitions.get(state).get(c)) == null && state != 0) {
+                state = failure[state];
+            }
+            state = next == null ? 0 : next;
+            if (accepting[state]) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Builds the goto and failure functions of the automaton
+     * @param keywords Lower case keywords
+     */
+    private void buildAutomaton(List<String> keywords) {
+        transitions.add(new HashMap<Character, Integer>());
+        List<Boolean> accept = new ArrayList<>();
+        accept.add(false);
+
+        // Trie of all keywords
+        for (String keyword : keywords) {
+            int state = 0;
+            for (int i = 0; i < keyword.length(); i++) {
+                Character c = keyword.charAt(i);
+                Integer next = transitions.get(state).get(c);
+                if (next == null) {
+                    next = transitions.size();
+                    transitions.add(new HashMap<Character, Integer>());
+                    accept.add(false);
+                    transitions.get(state).put(c, next);
+                }
+                state = next;
+            }
+            accept.set(state, true);
+        }
+
+        // Failure links in breadth-first order
+        failure = new int[transitions.size()];
+        accepting = new boolean[transitions.size()];
+        for (int i = 0; i < accepting.length; i++) {
+            accepting[i] = accept.get(i);
+        }
+        Queue<Integer> queue = new LinkedList<>();
+        for (Integer child : transitions.get(0).values()) {
+            failure[child] = 0;
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            for (Map.Entry<Character, Integer> entry : transitions.get(state).entrySet()) {
+                int child = entry.getValue();
+                int fallback = failure[state];
+                Integer target;
+                while ((target = transitions.get(fallback).get(entry.getKey())) == null
+                        && fallback != 0) {
+                    fallback = failure[fallback];
+                }
+                failure[child] = target == null ? 0 : target;
+                // A state also accepts if a keyword ends in its longest proper suffix
+                accepting[child] = accepting[child] || accepting[failure[child]];
+                queue.add(child);
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package de.mbdevelopment.android.rbtvsendeplan;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shared clock that calls its listeners whenever an event of the displayed schedule starts or
+ * ends. Only a single callback for the next transition is scheduled at a time and re-armed after
+ * it has fired, so no polling is needed. Must only be used on the UI thread.
+ */
+class TransitionClock {
+
+    /**
+     * Receives transitions of the schedule
+     */
+    interface Listener {
+
+        /**
+         * Called when an event has started or ended
+         * @param now Current time in milliseconds
+         */
+        void onTransition(long now);
+    }
+
+    /**
+     * Handler of the UI thread
+     */
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Registered listeners
+     */
+    private final List<Listener> listeners = new ArrayList<>();
+
+    /**
+     * Display data providing the transitions
+     */
+    private ScheduleRenderModel model;
+
+    /**
+     * Time in milliseconds the callback is scheduled for or -1 if none is scheduled
+     */
+    private long armedTime = -1;
+
+    /**
+     * Calls the listeners and re-arms the clock
+     */
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            long scheduled = armedTime;
+            armedTime = -1;
+            long now = System.currentTimeMillis();
+            if (now < scheduled) {
+                // The wall clock has been set back in the meantime
+                arm();
+                return;
+            }
+            Listener[] current = listeners.toArray(new Listener[listeners.size()]);
+            for (Listener listener : current) {
+                listener.onTransition(now);
+            }
+            arm();
+        }
+    };
+
+    // Private constructor. Prevents instantiation from other classes.
+    private TransitionClock() {}
+
+    /**
+     * Implements Bill Pugh's version of the singleton pattern instantiation
+     */
+    private static class InstanceHolder {
+        private static final TransitionClock INSTANCE = new TransitionClock();
+    }
+
+    /**
+     * Gets the singleton TransitionClock
+     * @return The singleton instance
+     */
+    public static TransitionClock getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    /**
+     * Sets the display data whose transitions are followed
+     * @param model The displayed model
+     */
+    void setModel(ScheduleRenderModel model) {
+        this.model = model;
+        arm();
+    }
+
+    /**
+     * Registers a listener. The clock only runs while listeners are registered.
+     * @param listener The listener to be added
+     */
+    void addListener(Listener listener) {
+        if (!listeners.contains(listener)) listeners.add(listener);
+        arm();
+    }
+
+    /**
+     * Unregisters a listener
+     * @param listener The listener to be removed
+     */
+    void removeListener(Listener listener) {
+        listeners.remove(listener);
+        arm();
+    }
+
+    /**
+     * Schedules the callback for the next transition, replacing a callback that is no longer
+     * needed
+     */
+    private void arm() {
+        long next = model == null || listeners.isEmpty() ? Long.MAX_VALUE
+                : model.getNextTransition(System.currentTimeMillis());
+        if (next == armedTime) return;
+        handler.removeCallbacks(tick);
+        armedTime = -1;
+        if (next == Long.MAX_VALUE) return;
+
+        // Uptime does not advance in deep sleep, listeners catch up when they are started again
+        handler.postDelayed(tick, Math.max(0, next - System.currentTimeMillis()));
+        armedTime = next;
+    }
+}
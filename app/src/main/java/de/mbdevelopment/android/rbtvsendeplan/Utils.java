@@ -5,6 +5,7 @@ import org.json.JSONObject;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Locale;
+import java.util.TimeZone;
 
 /**
  * Class of helper functions.
@@ -42,4 +43,17 @@ class Utils {
                 a.get(Calendar.DAY_OF_MONTH) == b.get(Calendar.DAY_OF_MONTH);
 
     }
+
+    /**
+     * Gets the number of days since 1970-01-01 for the local date of a calendar
+     * @param date Calendar
+     * @return Days since the epoch of the calendar's local date
+     */
+    public static long toEpochDay(Calendar date) {
+        Calendar utc = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        utc.clear();
+        utc.set(date.get(Calendar.YEAR), date.get(Calendar.MONTH),
+                date.get(Calendar.DAY_OF_MONTH));
+        return utc.getTimeInMillis() / (24 * 60 * 60 * 1000L);
+    }
 }
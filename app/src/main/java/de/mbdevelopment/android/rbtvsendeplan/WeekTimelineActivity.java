@@ -0,0 +1,50 @@
+package de.mbdevelopment.android.rbtvsendeplan;
+
+import android.app.Activity;
+import android.os.Bundle;
+
+import java.util.Observable;
+import java.util.Observer;
+
+/**
+ * Activity showing the schedule of the next seven days as a timeline
+ */
+public class WeekTimelineActivity extends Activity implements Observer {
+
+    /**
+     * The timeline
+     */
+    private WeekTimelineView timelineView;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_week_timeline);
+        timelineView = (WeekTimelineView) findViewById(R.id.week_timeline);
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        DataHolder.getInstance().addObserver(this);
+        // The geometry is only recomputed if the schedule has changed in the meantime
+        timelineView.setSnapshot(DataHolder.getInstance().getSnapshot());
+    }
+
+    @Override
+    protected void onStop() {
+        DataHolder.getInstance().deleteObserver(this);
+        super.onStop();
+    }
+
+    @Override
+    public void update(Observable observable, Object data) {
+        final ScheduleSnapshot snapshot = ((DataHolder) observable).getSnapshot();
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                timelineView.setSnapshot(snapshot);
+            }
+        });
+    }
+}
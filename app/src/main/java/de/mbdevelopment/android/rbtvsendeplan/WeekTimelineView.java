@@ -0,0 +1,530 @@
+package de.mbdevelopment.android.rbtvsendeplan;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.text.TextPaint;
+import android.text.format.DateUtils;
+import android.util.AttributeSet;
+import android.util.SparseArray;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.View;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * Timeline of the next seven days. Each day is a column of blocks, one per show, coloured by its
+ * type. The timeline can be panned and zoomed.
+ * <p>
+ * The geometry of all blocks is computed once per schedule version into primitive arrays in
+ * content units (columns and minutes). Blocks are sorted by type, so each paint is used for one
+ * consecutive run of rectangles that the renderer can merge, and grid lines are drawn with a
+ * single call. Drawing allocates nothing.
+ */
+public class WeekTimelineView extends View {
+
+    /**
+     * Number of day columns
+     */
+    private static final int DAYS = 7;
+
+    /**
+     * Minutes per day
+     */
+    private static final int MINUTES_PER_DAY = 24 * 60;
+
+    /**
+     * Maximum zoom factor
+     */
+    private static final float MAX_SCALE = 4f;
+
+    /**
+     * Interval in which the current time line is moved in milliseconds
+     */
+    private static final long NOW_INTERVAL = 60 * 1000L;
+
+    /**
+     * Fill paints by ordinal of {@link Event.Type}
+     */
+    private final Paint[] blockPaints = new Paint[Event.Type.values().length];
+
+    private final Paint gridPaint = new Paint();
+    private final Paint headerPaint = new Paint();
+    private final Paint nowPaint = new Paint();
+    private final TextPaint titlePaint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+    private final TextPaint dayPaint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+
+    /**
+     * Height of the row of day labels in pixels
+     */
+    private final float headerHeight;
+
+    /**
+     * Height of an hour at zoom factor 1 in pixels
+     */
+    private final float hourHeight;
+
+    /**
+     * Inner padding of blocks in pixels
+     */
+    private final float blockPadding;
+
+    /**
+     * Version of the schedule the geometry has been computed for
+     */
+    private ScheduleSnapshot snapshot;
+
+    /**
+     * Epoch day of the first column
+     */
+    private long firstDay;
+
+    /**
+     * Column of each block
+     */
+    private int[] blockColumns = new int[0];
+
+    /**
+     * First minute of each block within its day
+     */
+    private float[] blockStarts = new float[0];
+
+    /**
+     * Last minute of each block within its day
+     */
+    private float[] blockEnds = new float[0];
+
+    /**
+     * Title of each block
+     */
+    private String[] blockTitles = new String[0];
+
+    /**
+     * Index of the first block of each type, followed by the number of blocks. Blocks are sorted
+     * by type.
+     */
+    private int[] typeOffsets = new int[blockPaints.length + 1];
+
+    /**
+     * Hour and day separators as line segments in content units
+     */
+    private final float[] gridLines;
+
+    /**
+     * Top edges of all blocks as line segments in content units
+     */
+    private float[] blockLines = new float[0];
+
+    /**
+     * Column of the current day or -1 if it is not shown
+     */
+    private long nowColumn = -1;
+
+    /**
+     * Current minute of the day
+     */
+    private float nowMinute;
+
+    /**
+     * Label of each column
+     */
+    private final String[] dayLabels = new String[DAYS];
+
+    /**
+     * Current zoom factor
+     */
+    private float scale = 1f;
+
+    /**
+     * Horizontal scroll position in pixels
+     */
+    private float panX;
+
+    /**
+     * Vertical scroll position in pixels
+     */
+    private float panY;
+
+    /**
+     * Whether the initial scroll position has been applied
+     */
+    private boolean positioned = false;
+
+    private final GestureDetector gestureDetector;
+    private final ScaleGestureDetector scaleDetector;
+
+    /**
+     * Moves the current time line while the view is attached
+     */
+    private final Runnable nowTick = new Runnable() {
+        @Override
+        public void run() {
+            updateNow();
+            invalidate();
+            postDelayed(this, NOW_INTERVAL);
+        }
+    };
+
+    public WeekTimelineView(Context context) {
+        this(context, null);
+    }
+
+    public WeekTimelineView(Context context, AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public WeekTimelineView(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+        Resources resources = getResources();
+        headerHeight = resources.getDimension(R.dimen.week_timeline_header_height);
+        hourHeight = resources.getDimension(R.dimen.week_timeline_hour_height);
+        blockPadding = resources.getDimension(R.dimen.week_timeline_block_padding);
+
+        blockPaints[Event.Type.LIVE.ordinal()] =
+                createFill(resources.getColor(R.color.live_background_selected));
+        blockPaints[Event.Type.NEW.ordinal()] =
+                createFill(resources.getColor(R.color.new_background_selected));
+        blockPaints[Event.Type.RERUN.ordinal()] =
+                createFill(resources.getColor(R.color.rerun_background_selected));
+
+        // Hairlines stay one pixel wide at any zoom factor
+        gridPaint.setStyle(Paint.Style.STROKE);
+        gridPaint.setStrokeWidth(0);
+        gridPaint.setColor(resources.getColor(R.color.week_timeline_grid));
+        headerPaint.setColor(resources.getColor(R.color.event_list_group_collapsed_background));
+        nowPaint.setColor(resources.getColor(R.color.running_indicator));
+        nowPaint.setStrokeWidth(resources.getDimension(R.dimen.week_timeline_now_width));
+
+        EventRowView.Style style = EventRowView.Style.get(context);
+        int textColor = resources.getColor(R.color.event_list_child_text);
+        titlePaint.setTypeface(style.typeFace);
+        titlePaint.setTextSize(resources.getDimension(R.dimen.week_timeline_text_size));
+        titlePaint.setColor(textColor);
+        dayPaint.setTypeface(style.typeFaceBold);
+        dayPaint.setTextSize(resources.getDimension(R.dimen.week_timeline_text_size));
+        dayPaint.setColor(textColor);
+        dayPaint.setTextAlign(Paint.Align.CENTER);
+
+        gridLines = new float[(25 + DAYS + 1) * 4];
+        int i = 0;
+        for (int hour = 0; hour <= 24; hour++) {
+            i = addLine(gridLines, i, 0, hour * 60, DAYS, hour * 60);
+        }
+        for (int day = 0; day <= DAYS; day++) {
+            i = addLine(gridLines, i, day, 0, day, MINUTES_PER_DAY);
+        }
+
+        gestureDetector = new GestureDetector(context,
+                new GestureDetector.SimpleOnGestureListener() {
+                    @Override
+                    public boolean onDown(MotionEvent e) {
+                        return true;
+                    }
+
+                    @Override
+                    public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX,
+                                            float distanceY) {
+                        panX += distanceX;
+                        panY += distanceY;
+                        clampPan();
+                        invalidate();
+                        return true;
+                    }
+                });
+        scaleDetector = new ScaleGestureDetector(context,
+                new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+                    @Override
+                    public boolean onScale(ScaleGestureDetector detector) {
+                        zoom(detector.getScaleFactor(), detector.getFocusX(),
+                                detector.getFocusY());
+                        return true;
+                    }
+                });
+    }
+
+    /**
+     * Shows a version of the schedule. The block geometry is only recomputed if the version has
+     * changed.
+     * @param snapshot The schedule
+     */
+    void setSnapshot(ScheduleSnapshot snapshot) {
+        if (snapshot == null || snapshot.isSameVersion(this.snapshot)) return;
+        this.snapshot = snapshot;
+        computeGeometry(snapshot.getEventGroups(), Calendar.getInstance());
+        updateNow();
+        invalidate();
+    }
+
+    /**
+     * Computes the blocks of the seven days starting with a given day
+     * @param eventGroups The schedule
+     * @param today The first day
+     */
+    private void computeGeometry(SparseArray<EventGroup> eventGroups, Calendar today) {
+        firstDay = Utils.toEpochDay(today);
+        Calendar day = (Calendar) today.clone();
+        for (int i = 0; i < DAYS; i++) {
+            dayLabels[i] = DateUtils.formatDateTime(getContext(), day.getTimeInMillis(),
+                    DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_WEEKDAY
+                            | DateUtils.FORMAT_ABBREV_WEEKDAY | DateUtils.FORMAT_NUMERIC_DATE
+                            | DateUtils.FORMAT_NO_YEAR);
+            day.add(Calendar.DAY_OF_MONTH, 1);
+        }
+
+        // Collect the blocks by type, shows running past midnight are split at each midnight
+        List<List<float[]>> byType = new ArrayList<>(blockPaints.length);
+        List<List<String>> titlesByType = new ArrayList<>(blockPaints.length);
+        for (int t = 0; t < blockPaints.length; t++) {
+            byType.add(new ArrayList<float[]>());
+            titlesByType.add(new ArrayList<String>());
+        }
+        for (int i = 0; i < eventGroups.size(); i++) {
+            for (Event e : eventGroups.valueAt(i).getEvents()) {
+                long startDay = Utils.toEpochDay(e.getStartDate()) - firstDay;
+                long endDay = Utils.toEpochDay(e.getEndDate()) - firstDay;
+                float startMinute = getMinuteOfDay(e.getStartDate());
+                float endMinute = getMinuteOfDay(e.getEndDate());
+                for (long column = Math.max(0, startDay); column <= Math.min(DAYS - 1, endDay);
+                     column++) {
+                    float top = column == startDay ? startMinute : 0;
+                    float bottom = column == endDay ? endMinute : MINUTES_PER_DAY;
+                    if (bottom <= top) continue;
+                    byType.get(e.getType().ordinal()).add(new float[] {column, top, bottom});
+                    titlesByType.get(e.getType().ordinal()).add(e.getTitle());
+                }
+            }
+        }
+
+        int count = 0;
+        for (List<float[]> blocks : byType) {
+            count += blocks.size();
+        }
+        blockColumns = new int[count];
+        blockStarts = new float[count];
+        blockEnds = new float[count];
+        blockTitles = new String[count];
+        blockLines = new float[count * 4];
+        int index = 0;
+        for (int t = 0; t < blockPaints.length; t++) {
+            typeOffsets[t] = index;
+            List<float[]> blocks = byType.get(t);
+            for (int i = 0; i < blocks.size(); i++, index++) {
+                float[] block = blocks.get(i);
+                blockColumns[index] = (int) block[0];
+                blockStarts[index] = block[1];
+                blockEnds[index] = block[2];
+                String title = titlesByType.get(t).get(i);
+                blockTitles[index] = title == null ? "" : title;
+                addLine(blockLines, index * 4, block[0], block[1], block[0] + 1, block[1]);
+            }
+        }
+        typeOffsets[blockPaints.length] = index;
+    }
+
+    /**
+     * Updates the position of the current time line. After midnight the columns are moved to
+     * start with the new day.
+     */
+    private void updateNow() {
+        Calendar now = Calendar.getInstance();
+        if (snapshot != null && Utils.toEpochDay(now) != firstDay) {
+            computeGeometry(snapshot.getEventGroups(), now);
+        }
+        long column = Utils.toEpochDay(now) - firstDay;
+        nowColumn = snapshot != null && column < DAYS ? column : -1;
+        nowMinute = getMinuteOfDay(now);
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        if (!positioned && h > 0) {
+            // Start one hour before the current time
+            panY = (getMinuteOfDay(Calendar.getInstance()) - 60) * getMinuteHeight();
+            positioned = true;
+        }
+        clampPan();
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        nowTick.run();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        removeCallbacks(nowTick);
+        super.onDetachedFromWindow();
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        boolean handled = scaleDetector.onTouchEvent(event);
+        handled |= gestureDetector.onTouchEvent(event);
+        return handled || super.onTouchEvent(event);
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        float columnWidth = getColumnWidth();
+        float minuteHeight = getMinuteHeight();
+        float width = getWidth();
+        float height = getHeight();
+
+        // Blocks, one consecutive run per paint
+        for (int t = 0; t < blockPaints.length; t++) {
+            for (int i = typeOffsets[t]; i < typeOffsets[t + 1]; i++) {
+                float left = blockColumns[i] * columnWidth - panX;
+                float top = headerHeight + blockStarts[i] * minuteHeight - panY;
+                float right = left + columnWidth;
+                float bottom = headerHeight + blockEnds[i] * minuteHeight - panY;
+                if (right < 0 || left > width || bottom < headerHeight || top > height) continue;
+                canvas.drawRect(left, top, right, bottom, blockPaints[t]);
+            }
+        }
+
+        // Block borders and grid in content units
+        int saveCount = canvas.save();
+        canvas.clipRect(0, headerHeight, width, height);
+        canvas.translate(-panX, headerHeight - panY);
+        canvas.scale(columnWidth, minuteHeight);
+        canvas.drawLines(gridLines, gridPaint);
+        canvas.drawLines(blockLines, gridPaint);
+        canvas.restoreToCount(saveCount);
+
+        // Titles of blocks that are tall enough
+        float ascent = titlePaint.ascent();
+        float lineHeight = titlePaint.descent() - ascent;
+        float textWidth = columnWidth - 2 * blockPadding;
+        if (textWidth > 0) {
+            for (int i = 0; i < blockTitles.length; i++) {
+                float left = blockColumns[i] * columnWidth - panX;
+                float top = headerHeight + blockStarts[i] * minuteHeight - panY;
+                float bottom = headerHeight + blockEnds[i] * minuteHeight - panY;
+                if (bottom - top < lineHeight + 2 * blockPadding) continue;
+                if (left + columnWidth < 0 || left > width || bottom < headerHeight
+                        || top + blockPadding - ascent > height) {
+                    continue;
+                }
+                int length = titlePaint.breakText(blockTitles[i], true, textWidth, null);
+                canvas.drawText(blockTitles[i], 0, length, left + blockPadding,
+                        Math.max(top, headerHeight) + blockPadding - ascent, titlePaint);
+            }
+        }
+
+        // Current time in the column of the current day
+        float now = headerHeight + nowMinute * minuteHeight - panY;
+        if (nowColumn >= 0 && now >= headerHeight && now <= height) {
+            float left = nowColumn * columnWidth - panX;
+            canvas.drawLine(left, now, left + columnWidth, now, nowPaint);
+        }
+
+        // Day labels stay at the top
+        canvas.drawRect(0, 0, width, headerHeight, headerPaint);
+        float labelY = (headerHeight - dayPaint.ascent() - dayPaint.descent()) / 2;
+        for (int i = 0; i < DAYS; i++) {
+            if (dayLabels[i] == null) continue;
+            float center = (i + 0.5f) * columnWidth - panX;
+            canvas.drawText(dayLabels[i], center, labelY, dayPaint);
+        }
+        canvas.drawLine(0, headerHeight, width, headerHeight, gridPaint);
+    }
+
+    /**
+     * Changes the zoom factor keeping the content below a focus point in place
+     * @param factor Relative change of the zoom factor
+     * @param focusX Horizontal focus point in pixels
+     * @param focusY Vertical focus point in pixels
+     */
+    private void zoom(float factor, float focusX, float focusY) {
+        float newScale = Math.max(getMinScale(), Math.min(MAX_SCALE, scale * factor));
+        float applied = newScale / scale;
+        panX = (panX + focusX) * applied - focusX;
+        float contentY = focusY - headerHeight;
+        panY = (panY + contentY) * applied - contentY;
+        scale = newScale;
+        clampPan();
+        invalidate();
+    }
+
+    /**
+     * Keeps the scroll position within the content
+     */
+    private void clampPan() {
+        float maxX = DAYS * getColumnWidth() - getWidth();
+        float maxY = MINUTES_PER_DAY * getMinuteHeight() - (getHeight() - headerHeight);
+        panX = Math.max(0, Math.min(panX, maxX));
+        panY = Math.max(0, Math.min(panY, maxY));
+    }
+
+    /**
+     * Gets the smallest zoom factor, at which a whole day fits the height of the view
+     * @return The minimum zoom factor, at most 1
+     */
+    private float getMinScale() {
+        float available = getHeight() - headerHeight;
+        if (available <= 0) return 1f;
+        return Math.min(1f, available / (24 * hourHeight));
+    }
+
+    /**
+     * Gets the width of a column. At zoom factor 1, all columns fit the width of the view.
+     * @return Width in pixels
+     */
+    private float getColumnWidth() {
+        return getWidth() * scale / DAYS;
+    }
+
+    /**
+     * Gets the height of a minute
+     * @return Height in pixels
+     */
+    private float getMinuteHeight() {
+        return hourHeight * scale / 60;
+    }
+
+    /**
+     * Gets the minute of the day of a date
+     * @param date The date
+     * @return Minutes since local midnight
+     */
+    private static float getMinuteOfDay(Calendar date) {
+        return date.get(Calendar.HOUR_OF_DAY) * 60 + date.get(Calendar.MINUTE)
+                + date.get(Calendar.SECOND) / 60f;
+    }
+
+    /**
+     * Creates a fill paint
+     * @param color Fill color
+     * @return The new paint
+     */
+    private static Paint createFill(int color) {
+        Paint paint = new Paint();
+        paint.setColor(color);
+        return paint;
+    }
+
+    /**
+     * Writes a line segment into an array
+     * @param lines Target array
+     * @param index First index to write to
+     * @param x0 Start column
+     * @param y0 Start minute
+     * @param x1 End column
+     * @param y1 End minute
+     * @return Index after the segment
+     */
+    private static int addLine(float[] lines, int index, float x0, float y0, float x1, float y1) {
+        lines[index] = x0;
+        lines[index + 1] = y0;
+        lines[index + 2] = x1;
+        lines[index + 3] = y1;
+        return index + 4;
+    }
+}
@@ -0,0 +1,139 @@
+package de.mbdevelopment.android.rbtvsendeplan;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.DataFormatException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class HistoryArchiveTest {
+
+    private static final long DAY = 17000;
+
+    private static final long DAY_START = DAY * 24 * 60 * 60;
+
+    private static Event event(long start, long end, String title, Event.Type type, String id,
+                               String recurringId) {
+        Calendar startDate = Calendar.getInstance();
+        startDate.setTimeInMillis(start * 1000);
+        Calendar endDate = Calendar.getInstance();
+        endDate.setTimeInMillis(end * 1000);
+        return new Event(startDate, endDate, title, type, id, recurringId);
+    }
+
+    private static TreeMap<Long, List<Event>> sampleDays() {
+        TreeMap<Long, List<Event>> days = new TreeMap<>();
+        days.put(DAY, Arrays.asList(
+                event(DAY_START + 3600, DAY_START + 7200, "Almost Daily", Event.Type.LIVE, "a",
+                        "series"),
+                // Starts before the previous event, so the delta is negative
+                event(DAY_START + 1800, DAY_START + 3600, "Zocken mit Bohnen \u00e4\u00f6\u00fc",
+                        Event.Type.RERUN, "b", null),
+                event(DAY_START + 90000, DAY_START + 93600, null, Event.Type.NEW, "c", null)));
+        days.put(DAY + 1, new ArrayList<Event>());
+        return days;
+    }
+
+    private static void assertSameEvent(Event expected, Event actual) {
+        assertEquals(expected.getStartDate().getTimeInMillis(),
+                actual.getStartDate().getTimeInMillis());
+        assertEquals(expected.getEndDate().getTimeInMillis(),
+                actual.getEndDate().getTimeInMillis());
+        assertEquals(expected.getTitle(), actual.getTitle());
+        assertEquals(expected.getType(), actual.getType());
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getRecurringId(), actual.getRecurringId());
+    }
+
+    @Test
+    public void roundTrip() throws DataFormatException {
+        TreeMap<Long, List<Event>> days = sampleDays();
+        byte[] block = HistoryArchive.compress(HistoryArchive.encodeEvents(days));
+
+        Map<Long, List<Event>> decoded = new TreeMap<>();
+        HistoryArchive.decodeDays(HistoryArchive.decompress(block), decoded);
+
+        assertEquals(days.keySet(), decoded.keySet());
+        for (Map.Entry<Long, List<Event>> day : days.entrySet()) {
+            List<Event> events = decoded.get(day.getKey());
+            assertEquals(day.getValue().size(), events.size());
+            for (int i = 0; i < events.size(); i++) {
+                assertSameEvent(day.getValue().get(i), events.get(i));
+            }
+        }
+        assertNull(decoded.get(DAY).get(1).getRecurringId());
+        assertNull(decoded.get(DAY).get(2).getTitle());
+    }
+
+    @Test
+    public void laterBlocksReplaceDays() throws DataFormatException {
+        TreeMap<Long, List<Event>> update = new TreeMap<>();
+        update.put(DAY, Arrays.asList(event(DAY_START, DAY_START + 60, "Neu", Event.Type.NEW,
+                "d", null)));
+
+        Map<Long, List<Event>> decoded = new TreeMap<>();
+        HistoryArchive.decodeDays(HistoryArchive.encodeEvents(sampleDays()), decoded);
+        HistoryArchive.decodeDays(HistoryArchive.encodeEvents(update), decoded);
+
+        assertEquals(1, decoded.get(DAY).size());
+        assertEquals("d", decoded.get(DAY).get(0).getId());
+        assertEquals(0, decoded.get(DAY + 1).size());
+    }
+
+    @Test(expected = DataFormatException.class)
+    public void garbageIsRejected() throws DataFormatException {
+        HistoryArchive.decompress(new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+    }
+
+    @Test(expected = DataFormatException.class)
+    public void truncatedBlockIsRejected() throws DataFormatException {
+        byte[] block = HistoryArchive.compress(HistoryArchive.encodeEvents(sampleDays()));
+        HistoryArchive.decompress(Arrays.copyOf(block, block.length / 2));
+    }
+
+    @Test
+    public void truncatedDataFails() {
+        byte[] data = HistoryArchive.encodeEvents(sampleDays());
+        try {
+            HistoryArchive.decodeDays(Arrays.copyOf(data, data.length - 3),
+                    new TreeMap<Long, List<Event>>());
+            fail("Truncated data must not decode");
+        } catch (RuntimeException e) {
+            // Expected, reading the segment skips the month
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void hugeDayCountIsRejected() {
+        byte[] data = {(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x0f};
+        HistoryArchive.decodeDays(data, new TreeMap<Long, List<Event>>());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void hugeEventCountIsRejected() {
+        byte[] data = {1, 0, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x0f};
+        HistoryArchive.decodeDays(data, new TreeMap<Long, List<Event>>());
+    }
+
+    @Test
+    public void unknownTypeFails() {
+        byte[] data = HistoryArchive.encodeEvents(sampleDays());
+        // Day count (one byte), day (three bytes), event count (one byte), start delta (two
+        // bytes) and duration (two bytes) precede the type of the first event
+        data[9] = 0x7f;
+        try {
+            HistoryArchive.decodeDays(data, new TreeMap<Long, List<Event>>());
+            fail("Unknown type must not decode");
+        } catch (RuntimeException e) {
+            // Expected, reading the segment skips the month
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package de.mbdevelopment.android.rbtvsendeplan;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ReminderReconcilerTest {
+
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    private static final long NOW = 1000 * HOUR;
+
+    private static final int OFFSET = 15 * 60 * 1000;
+
+    private static Event event(String id, String recurringId, String title, long start) {
+        Calendar startDate = Calendar.getInstance();
+        startDate.setTimeInMillis(start);
+        Calendar endDate = Calendar.getInstance();
+        endDate.setTimeInMillis(start + HOUR);
+        return new Event(startDate, endDate, title, Event.Type.NEW, id, recurringId);
+    }
+
+    private static List<EventGroup> schedule(Event... events) {
+        return Collections.singletonList(new EventGroup(Calendar.getInstance(),
+                new ArrayList<>(Arrays.asList(events))));
+    }
+
+    private static Map<String, Event> reminders(Event... events) {
+        Map<String, Event> reminders = new HashMap<>();
+        for (Event e : events) {
+            reminders.put(e.getId(), e);
+        }
+        return reminders;
+    }
+
+    private static List<String> ids(List<Event> events) {
+        List<String> ids = new ArrayList<>();
+        for (Event e : events) {
+            ids.add(e.getId());
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private static ReminderReconciler.Result reconcile(Map<String, Event> reminders,
+                                                       List<String> recurring,
+                                                       List<EventGroup> schedule,
+                                                       SubscriptionMatcher subscriptions,
+                                                       Set<String> optOuts) {
+        return ReminderReconciler.reconcile(reminders, recurring, schedule, NOW, OFFSET,
+                subscriptions, optOuts);
+    }
+
+    @Test
+    public void unchangedRemindersAreKept() {
+        Event a = event("a", null, "A", NOW + HOUR);
+        ReminderReconciler.Result result = reconcile(reminders(a), null,
+                schedule(event("a", null, "A", NOW + HOUR)), null, new HashSet<String>());
+        assertTrue(result.isEmpty());
+    }
+
+    @Test
+    public void vanishedEventsAreRemoved() {
+        Event a = event("a", null, "A", NOW + HOUR);
+        ReminderReconciler.Result result = reconcile(reminders(a), null,
+                schedule(event("b", null, "B", NOW + HOUR)), null, new HashSet<String>());
+        assertEquals(1, result.removed.size());
+        assertSame(a, result.removed.get(0));
+        assertTrue(result.moved.isEmpty());
+        assertTrue(result.added.isEmpty());
+    }
+
+    @Test
+    public void changedDatesMoveOrRemove() {
+        Event a = event("a", null, "A", NOW + HOUR);
+        Event b = event("b", null, "B", NOW + HOUR);
+        Event movedA = event("a", null, "A", NOW + 2 * HOUR);
+        Event startedB = event("b", null, "B", NOW - HOUR);
+        ReminderReconciler.Result result = reconcile(reminders(a, b), null,
+                schedule(movedA, startedB), null, new HashSet<String>());
+        assertEquals(1, result.moved.size());
+        assertSame(movedA, result.moved.get(0));
+        assertEquals(1, result.removed.size());
+        assertSame(b, result.removed.get(0));
+    }
+
+    @Test
+    public void upcomingInstancesOfSubscribedSeriesAreAdded() {
+        Event reminded = event("a", "series", "A", NOW + HOUR);
+        ReminderReconciler.Result result = reconcile(reminders(reminded),
+                Collections.singletonList("series"),
+                schedule(event("a", "series", "A", NOW + HOUR),
+                        event("b", "series", "A", NOW + 2 * HOUR),
+                        // Reminder time has passed
+                        event("c", "series", "A", NOW + OFFSET / 2),
+                        event("d", "other", "D", NOW + HOUR)),
+                null, new HashSet<String>());
+        assertEquals(Collections.singletonList("b"), ids(result.added));
+        assertTrue(result.removed.isEmpty());
+        assertTrue(result.moved.isEmpty());
+    }
+
+    @Test
+    public void subscriptionMatchesAreAddedOnce() {
+        SubscriptionMatcher subscriptions = SubscriptionMatcher.parse("daily", null);
+        ReminderReconciler.Result result = reconcile(reminders(),
+                Collections.singletonList("series"),
+                schedule(event("a", "series", "Almost Daily", NOW + HOUR),
+                        event("b", null, "Daily Special", NOW + HOUR),
+                        event("c", null, "Game Two", NOW + HOUR)),
+                subscriptions, new HashSet<String>());
+        assertEquals(Arrays.asList("a", "b"), ids(result.added));
+    }
+
+    @Test
+    public void optOutsAreNotAddedAgain() {
+        SubscriptionMatcher subscriptions = SubscriptionMatcher.parse("daily", null);
+        Set<String> optOuts = new HashSet<>(Arrays.asList("a", "b", "gone"));
+        ReminderReconciler.Result result = reconcile(reminders(),
+                Collections.singletonList("series"),
+                schedule(event("a", "series", "A", NOW + HOUR),
+                        event("b", null, "Daily Special", NOW + HOUR),
+                        event("c", "series", "A", NOW + 2 * HOUR)),
+                subscriptions, optOuts);
+        assertEquals(Collections.singletonList("c"), ids(result.added));
+        assertEquals(Collections.singletonList("gone"), result.expiredOptOuts);
+    }
+}
@@ -0,0 +1,105 @@
+package de.mbdevelopment.android.rbtvsendeplan;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.Collections;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SubscriptionMatcherTest {
+
+    private static Event event(String title, Event.Type type) {
+        Calendar start = Calendar.getInstance();
+        Calendar end = (Calendar) start.clone();
+        end.add(Calendar.HOUR_OF_DAY, 1);
+        return new Event(start, end, title, type, "id");
+    }
+
+    private static boolean matches(String rules, String title) {
+        return SubscriptionMatcher.parse(rules, null).matches(event(title, Event.Type.RERUN));
+    }
+
+    @Test
+    public void emptyRulesGiveEmptyMatcher() {
+        assertSame(SubscriptionMatcher.EMPTY, SubscriptionMatcher.parse(null, null));
+        assertSame(SubscriptionMatcher.EMPTY, SubscriptionMatcher.parse(" \n\n", null));
+        assertTrue(SubscriptionMatcher.EMPTY.isEmpty());
+        assertFalse(SubscriptionMatcher.EMPTY.matches(event("Almost Daily", Event.Type.LIVE)));
+    }
+
+    @Test
+    public void keywordsMatchCaseInsensitively() {
+        assertTrue(matches("daily", "Almost DAILY #123"));
+        assertFalse(matches("daily", "Game Two"));
+        assertFalse(matches("daily", null));
+    }
+
+    @Test
+    public void failureLinkContinuesInOtherKeyword() {
+        // After "abc" fails on 'e', the automaton has to continue in the state of "bc"
+        assertTrue(matches("abcd\nbce", "xabcex"));
+        assertFalse(matches("abcd\nbce", "xabcx"));
+        // Fallback over several levels
+        assertTrue(matches("aaab\naab", "aaaab"));
+    }
+
+    @Test
+    public void keywordInsideLongerKeywordIsFound() {
+        // "cd" ends inside the path of "abcde", its state only accepts through the failure link
+        assertTrue(matches("abcde\ncd", "abcdx"));
+        assertTrue(matches("he\nshe\nhis\nhers", "ushers"));
+        assertTrue(matches("he\nshe\nhis\nhers", "this"));
+        assertFalse(matches("he\nshe\nhis\nhers", "hi"));
+    }
+
+    @Test
+    public void regularExpressionsMatch() {
+        assertTrue(matches("/^Let's Play .* #\\d+$/", "Let's Play Zelda #12"));
+        assertFalse(matches("/^Let's Play .* #\\d+$/", "Let's Play Zelda"));
+        // Invalid expressions are ignored, the other rules still apply
+        assertTrue(matches("/(/\nzelda", "Let's Play Zelda"));
+        assertSame(SubscriptionMatcher.EMPTY, SubscriptionMatcher.parse("/(/", null));
+    }
+
+    @Test
+    public void regularExpressionsWithGroupsStayIndependent() {
+        String rules = "/^(Almost) Daily$/\n/^(Game) (Two)$/";
+        assertTrue(matches(rules, "Almost Daily"));
+        assertTrue(matches(rules, "Game Two"));
+        assertFalse(matches(rules, "Almost Game Two"));
+    }
+
+    @Test
+    public void backreferencesAreRejected() {
+        assertSame(SubscriptionMatcher.EMPTY, SubscriptionMatcher.parse("/(a)\\1/", null));
+        assertSame(SubscriptionMatcher.EMPTY, SubscriptionMatcher.parse("/(?<x>a)\\k<x>/", null));
+        // Escaped backslashes followed by digits are no backreferences
+        assertTrue(matches("/a\\\\1/", "a\\1"));
+    }
+
+    @Test(timeout = 10000)
+    public void backtrackingIsBounded() {
+        StringBuilder title = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            title.append('a');
+        }
+        title.append('!');
+        assertFalse(matches("/^(a+)+$/", title.toString()));
+        // Other rules are still evaluated
+        assertTrue(matches("/^(a+)+$/\n/!$/", title.toString()));
+    }
+
+    @Test
+    public void typesMatchAllEventsOfType() {
+        SubscriptionMatcher matcher = SubscriptionMatcher.parse(null,
+                Collections.singleton(Event.Type.LIVE.name()));
+        assertTrue(matcher.matches(event("Anything", Event.Type.LIVE)));
+        assertFalse(matcher.matches(event("Anything", Event.Type.NEW)));
+        // Unknown type names are ignored
+        assertSame(SubscriptionMatcher.EMPTY,
+                SubscriptionMatcher.parse(null, Collections.singleton("UNKNOWN")));
+    }
+}